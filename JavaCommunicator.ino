@@ -1,5 +1,34 @@
 #include <Servo.h> 
 
+// Top speeds of the x and y servos in inches/second, must match SpeedProfile
+#define X_MAX_SPEED 2.5
+#define Y_MAX_SPEED 2.5
+
+// How fast a move speeds up and slows down in inches/second^2, must match MotionPlanner
+#define ACCELERATION 20
+
+// How often the servo speeds are updated during a move, in ms
+#define STEP_TIME 5
+
+// Binary frames: start byte, longest payload (must match PlotterProtocol), how long to wait for the rest of a frame
+// and how long to wait for a frame asked for again before asking once more, in ms
+#define FRAME_START 0xA5
+#define FRAME_MAX 24
+#define FRAME_TIMEOUT 100
+#define RESEND_TIMEOUT 1000
+
+// Commands held ahead of the one running. The computer gets a credit for each one taken off the queue, so it can
+// keep this many in flight.
+#define QUEUE_SIZE 16
+
+// Serial rate at power-up. The computer can ask for a faster one, which is kept only if TEST_FRAMES frames of the
+// test pattern come through it and the computer confirms it got TEST_ECHO back within BAUD_TRIAL_TIMEOUT ms.
+// Otherwise both ends go back to BASE_BAUD_RATE.
+#define BASE_BAUD_RATE 9600
+#define BAUD_TRIAL_TIMEOUT 2000
+#define TEST_FRAMES 8
+#define TEST_ECHO "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+
 // Creates servos for the x and y directions
 Servo xServo;
 Servo yServo;
@@ -16,8 +45,460 @@ int neutralPos = 30;
 int downPos = 50;
 
 boolean firsttime = true;
+boolean binaryMode = false; // set by the hello frame until the path is done
 float ipr;
 
+// A command from a frame, waiting for its turn
+struct Command {
+  byte opcode;
+  boolean penDown;
+  int x; // x' for the configuration block
+  int y; // y' for the configuration block
+  long time;
+  unsigned int entrySpeed; // thousandths of inches/second
+  unsigned int exitSpeed;
+  float ipr;
+};
+
+Command queue[QUEUE_SIZE];
+int queueStart = 0; // oldest command
+int queueLength = 0;
+
+byte frame[3 + FRAME_MAX + 2]; // sequence number, opcode, payload length, payload, CRC
+int framePos = 0; // bytes of the frame in so far
+boolean inFrame = false; // start byte seen, rest of the frame still coming
+unsigned long frameStarted;
+byte expected = 0; // sequence number of the next frame to queue
+boolean resyncing = false; // a frame was lost, so frames are dropped until it comes again
+unsigned long resyncStarted;
+
+// Time and speeds of the next text 'p' line, from the 'v' line sent just before it. That line's own time is for a
+// move at a steady speed, which is what older Arduino code makes since it skips 'v' lines.
+boolean movePlanned = false;
+long plannedTime;
+double plannedEntrySpeed;
+double plannedExitSpeed;
+
+unsigned long baudRate = BASE_BAUD_RATE;
+boolean baudTrial = false; // running at a rate the computer asked for that hasn't passed its test yet
+unsigned long trialStarted;
+int testsPassed = 0; // test pattern frames that came through at that rate
+
+// Runs both servos so the marker goes speed inches/second along a move of xDist by yDist pixels, length inches long
+void writeSpeeds(double speed, int xDist, int yDist, double length) {
+  double xFraction = min(1.0, speed * ipr * abs(xDist) / (length * X_MAX_SPEED));
+  double yFraction = min(1.0, speed * ipr * abs(yDist) / (length * Y_MAX_SPEED));
+
+  if (xDist < 0) { // pen moves up, send high signal
+    xServo.write(90 * (1 + xFraction));
+  } else { // pen moves down, send low signal
+    xServo.write(90 * (1 - xFraction));
+  }
+
+  if (yDist < 0) { // pen moves left, send low signal
+    yServo.write(90 * (1 - yFraction));
+  } else { // pen moves right, send high signal
+    yServo.write(90 * (1 + yFraction));
+  }
+}
+
+// Moves the marker to (xCoord, yCoord), relative to (x', y'). The move speeds up from entrySpeed, cruises and slows
+// down to exitSpeed (inches/second), taking time ms.
+void moveTo(int xCoord, int yCoord, boolean penDown, long time, double entrySpeed, double exitSpeed) {
+  int xDist;
+  int yDist;
+  int axd;
+  int ayd;
+  double length;
+  double seconds;
+  double cruiseSpeed;
+  double b;
+  double c;
+  double t;
+  unsigned long start;
+  unsigned long elapsed;
+
+  xDist = xCoord - x + xPrime;
+  yDist = yCoord - y + yPrime;
+  axd = abs(xDist);
+  ayd = abs(yDist);
+
+  length = ipr * sqrt((double)axd * axd + (double)ayd * ayd);
+  seconds = time / 1000.0;
+  penServo.write(penDown ? downPos : neutralPos);
+
+  if (length > 0 && time > 0) {
+
+    // The move speeds up from entrySpeed to cruiseSpeed, cruises and slows down to exitSpeed, covering length
+    // in time. cruiseSpeed is the smaller root of
+    // cruise^2 - (a*seconds + entry + exit)*cruise + (entry^2 + exit^2)/2 + a*length = 0
+    b = ACCELERATION * seconds + entrySpeed + exitSpeed;
+    c = b * b - 2 * (entrySpeed * entrySpeed + exitSpeed * exitSpeed) - 4 * ACCELERATION * length;
+    cruiseSpeed = c > 0 ? (b - sqrt(c)) / 2 : b / 2;
+
+    start = millis();
+    elapsed = 0;
+    while (elapsed < time) {
+      t = elapsed / 1000.0;
+      writeSpeeds(min(cruiseSpeed, min(entrySpeed + ACCELERATION * t,
+          exitSpeed + ACCELERATION * (seconds - t))), xDist, yDist, length);
+      pause(STEP_TIME);
+      elapsed = millis() - start;
+    }
+
+  } else {
+    pause(time);
+  }
+
+  if (exitSpeed > 0) { // flows into the next move, which picks up from this speed
+    writeSpeeds(exitSpeed, xDist, yDist, length);
+  } else {
+    xServo.write(90); // So the servo doesn't overshoot
+    yServo.write(90);
+  }
+  
+  x = xCoord + xPrime;
+  y = yCoord + yPrime;
+  
+  // Debugging Block
+  Serial.print(">X: ");
+  Serial.print(x);
+  Serial.print(" | Y: ");
+  Serial.print(y);
+  Serial.print(" | ");
+  Serial.print(penDown ? "PEN DOWN" : "PEN UP");
+  Serial.print(" | DELAY: ");
+  Serial.print(time);
+  Serial.print(" | EXIT: ");
+  Serial.print(exitSpeed);
+  Serial.println("\r");
+}
+
+// Moves the marker from the origin to (x', y') with the pen up, taking time ms
+void configure(long time) {
+  double xInstr;
+  double yInstr;
+
+  if (xPrime > yPrime) {
+    
+    xInstr = 0;
+    yInstr = 90 * (1 + ((double)yPrime / (double)xPrime));
+
+    xServo.write(xInstr);
+    yServo.write(yInstr);
+    penServo.write(neutralPos); 
+    pause(time);
+    xServo.write(90);
+    yServo.write(90);
+    x = xPrime;
+    y = yPrime;
+    
+  } else {
+    
+    xInstr = 90 * (1 - ((double)xPrime / (double)yPrime));
+    yInstr = 180;
+
+    xServo.write(xInstr);
+    yServo.write(yInstr);
+    penServo.write(neutralPos); 
+    pause(time);
+    xServo.write(90);
+    yServo.write(90);
+    x = xPrime;
+    y = yPrime;
+    
+  }
+  
+  // Debugging
+  Serial.print(">");
+  Serial.print("x': ");
+  Serial.print(xPrime);
+  Serial.print(", y': ");
+  Serial.print(yPrime);
+  Serial.print(" | PEN UP");
+  Serial.print(" | DELAY: ");
+  Serial.print(time);
+  Serial.println("\r");
+}
+
+// Sets the inch-pixel ratio
+void setIpr(float value) {
+  ipr = value;
+  Serial.print(">");
+  Serial.print("Inch-Pixel Ratio: ");
+  Serial.print(ipr);
+  Serial.println("\r");
+}
+
+// Tells the computer the path is done. Anything after it is read as text again.
+void finishPath() {
+  binaryMode = false;
+  Serial.print(">");
+  Serial.print("d");
+  Serial.println("\r");
+}
+
+// Waits ms, reading frames in the meantime so the next commands come in while the marker moves
+void pause(unsigned long ms) {
+  unsigned long start = millis();
+
+  while (millis() - start < ms) {
+    if (binaryMode)
+      pollSerial();
+  }
+}
+
+// CRC-16/CCITT: polynomial 0x1021, starting at 0xFFFF, the same as PlotterProtocol
+uint16_t crc16(byte* data, int count) {
+  uint16_t crc = 0xFFFF;
+
+  for (int i = 0; i < count; i++) {
+    crc ^= (uint16_t)data[i] << 8;
+    for (int bit = 0; bit < 8; bit++) {
+      if (crc & 0x8000)
+        crc = (crc << 1) ^ 0x1021;
+      else
+        crc <<= 1;
+    }
+  }
+  return crc;
+}
+
+// Reads a number sent seven bits at a time, low bits first, starting at data[pos]. Moves pos past it.
+unsigned long readVarint(byte* data, int &pos) {
+  unsigned long value = 0;
+
+  for (int shift = 0; shift < 32; shift += 7) {
+    byte b = data[pos++];
+    value |= (unsigned long)(b & 0x7f) << shift;
+    if ((b & 0x80) == 0)
+      break;
+  }
+  return value;
+}
+
+// Asks the computer to send everything again from the frame expected next. Frames before it comes are dropped, and
+// if it doesn't come it is asked for again.
+void frameError() {
+  if (!resyncing) {
+    resyncing = true;
+    resyncStarted = millis();
+    Serial.print(">e");
+    Serial.print(expected);
+    Serial.print("\r");
+  }
+}
+
+// Reads whatever has come in into the frame being put together, without waiting for anything
+void pollSerial() {
+  byte b;
+
+  if (inFrame && millis() - frameStarted > FRAME_TIMEOUT) { // the rest of the frame got lost
+    inFrame = false;
+    frameError();
+  }
+  if (resyncing && millis() - resyncStarted > RESEND_TIMEOUT) { // so did the frame asked for again
+    resyncing = false;
+    frameError();
+  }
+
+  while (Serial.available() > 0) {
+    b = Serial.read();
+
+    if (!inFrame) {
+      if (b == FRAME_START) { // anything else is left over from a garbled frame
+        inFrame = true;
+        framePos = 0;
+        frameStarted = millis();
+      }
+      continue;
+    }
+
+    frame[framePos++] = b;
+    if (framePos == 3 && frame[2] > FRAME_MAX) {
+      inFrame = false;
+      frameError();
+    } else if (framePos > 3 && framePos == 3 + frame[2] + 2) {
+      inFrame = false;
+      acceptFrame();
+    }
+  }
+}
+
+// Switches to a faster serial rate for a trial, after telling the computer (at the old rate) whether it is one this
+// code runs at. Answers >s0 otherwise.
+void startBaudTrial(unsigned long rate) {
+  if (rate != 57600 && rate != 115200 && rate != 250000) {
+    Serial.print(">s0\r");
+    return;
+  }
+
+  Serial.print(">s");
+  Serial.print(rate);
+  Serial.print("\r");
+  Serial.flush(); // waits for the answer to go out before the rate changes
+  Serial.end();
+  Serial.begin(rate);
+
+  baudRate = rate;
+  baudTrial = true;
+  trialStarted = millis();
+  testsPassed = 0;
+  inFrame = false;
+}
+
+// Byte i of the test pattern frame numbered sequence, the same as PlotterProtocol. No byte comes twice across the
+// frames, and the first is the start byte, so a frame that lost a byte can't pass.
+byte testPatternByte(int sequence, int i) {
+  return (byte)((sequence * FRAME_MAX + i) * 11 + FRAME_START);
+}
+
+// Counts a test pattern frame that came through unchanged, and echoes TEST_ECHO back once they all have
+void checkTestPattern(int length) {
+  if (!baudTrial || length != FRAME_MAX)
+    return;
+  for (int i = 0; i < FRAME_MAX; i++) {
+    if (frame[3 + i] != testPatternByte(frame[0], i))
+      return;
+  }
+
+  if (++testsPassed == TEST_FRAMES) {
+    Serial.print(">t");
+    Serial.print(TEST_ECHO);
+    Serial.print("\r");
+  }
+}
+
+// Goes back to the rate at power-up, the one the computer falls back to as well
+void endBaudTrial() {
+  baudTrial = false;
+  baudRate = BASE_BAUD_RATE;
+  Serial.end();
+  Serial.begin(BASE_BAUD_RATE);
+  inFrame = false;
+  resyncing = false;
+}
+
+// Checks a whole frame and queues its command. The hello frame is answered straight away with the size of the queue,
+// and the frames that set up the serial rate are handled straight away too.
+void acceptFrame() {
+  int length = frame[2];
+  int pos = 3;
+  unsigned long timeAndPen;
+  byte behind;
+  Command* command;
+
+  if ((((uint16_t)frame[3 + length] << 8) | frame[4 + length]) != crc16(frame, 3 + length)) {
+    frameError();
+    return;
+  }
+
+  if (frame[1] == 'h') { // hello - the path comes as frames from now on
+    binaryMode = true;
+    expected = 0;
+    resyncing = false;
+    queueLength = 0;
+    Serial.print(">b");
+    Serial.print(QUEUE_SIZE);
+    Serial.print("\r");
+    return;
+  }
+
+  if (frame[1] == 'r') { // a faster serial rate to try
+    startBaudTrial(readVarint(frame, pos));
+    return;
+  }
+  if (frame[1] == 't') { // the test pattern, sent at the rate being tried
+    checkTestPattern(length);
+    return;
+  }
+  if (frame[1] == 'o') { // the computer got the echo, so the rate is kept. Asked again if the answer got lost.
+    if (baudTrial || baudRate != BASE_BAUD_RATE) {
+      baudTrial = false;
+      Serial.print(">o\r");
+    }
+    return;
+  }
+
+  behind = expected - frame[0];
+  if (behind > 0 && behind <= QUEUE_SIZE) // already queued, sent again after a rewind
+    return;
+  if (frame[0] != expected) { // sent after a frame that was lost
+    frameError();
+    return;
+  }
+  if (queueLength == QUEUE_SIZE) { // sent without credit
+    frameError();
+    return;
+  }
+
+  resyncing = false;
+  expected++;
+
+  command = &queue[(queueStart + queueLength) % QUEUE_SIZE];
+  queueLength++;
+  command->opcode = frame[1];
+
+  switch (frame[1]) {
+
+    case 'q':
+      memcpy(&command->ipr, frame + 3, 4);
+      break;
+
+    case 'c':
+      command->x = readVarint(frame, pos);
+      command->y = readVarint(frame, pos);
+      command->time = readVarint(frame, pos);
+      break;
+
+    case 'p':
+      command->x = readVarint(frame, pos);
+      command->y = readVarint(frame, pos);
+      timeAndPen = readVarint(frame, pos);
+      command->penDown = timeAndPen & 1;
+      command->time = timeAndPen >> 1;
+      command->entrySpeed = readVarint(frame, pos);
+      command->exitSpeed = readVarint(frame, pos);
+      break;
+  }
+}
+
+// Runs the oldest queued command. Its slot is free as soon as it is taken off the queue, so the computer gets its
+// credit back before the command runs.
+void runQueue() {
+  Command command;
+
+  if (queueLength == 0)
+    return;
+
+  command = queue[queueStart];
+  queueStart = (queueStart + 1) % QUEUE_SIZE;
+  queueLength--;
+  Serial.print(">r\r");
+
+  switch (command.opcode) {
+
+    case 'q':
+      setIpr(command.ipr);
+      break;
+
+    case 'c':
+      xPrime = command.x;
+      yPrime = command.y;
+      configure(command.time);
+      break;
+
+    case 'p':
+      moveTo(command.x, command.y, command.penDown, command.time, command.entrySpeed / 1000.0,
+          command.exitSpeed / 1000.0);
+      break;
+
+    case 'z':
+      finishPath();
+      break;
+  }
+}
+
 void setup() {
   // FIX ATTACHMENTS AND STUFF
   xServo.attach(5, 775, 2000); // pin 5 is for the x servo
@@ -26,7 +507,7 @@ void setup() {
   penServo.write(15);
   delay(100);
   penServo.write(neutralPos);
-  Serial.begin(9600);
+  Serial.begin(BASE_BAUD_RATE);
 }
 
 void loop() {
@@ -37,22 +518,28 @@ void loop() {
     Serial.print(">r\r");
     penServo.write(neutralPos); 
   }
+
+  // A faster rate that didn't pass its test in time
+  if (baudTrial && millis() - trialStarted > BAUD_TRIAL_TIMEOUT)
+    endBaudTrial();
   
+  // A binary path: frames are read as they come in, also while the marker moves, and run in order
+  if (binaryMode || inFrame) {
+    pollSerial();
+    runQueue();
+    return;
+  }
+
   // Code
   if (Serial.available() > 0) {
     
     int xCoord = 0;
     int yCoord = 0;
-    int xDist;
-    int yDist;
-    double xInstr;
-    double yInstr;
-    double pInstr;
-    int axd;
-    int ayd;
+    boolean penDown = false;
+    double entrySpeed = 0;
+    double exitSpeed = 0;
     String temp;
-    String pString;
-    long time;
+    long time = 0;
     
     byte incomingByte = Serial.read();
 
@@ -142,11 +629,9 @@ void loop() {
             continue;
 
           if (incomingByte == 'u') {
-            pInstr = neutralPos;
-            pString = "PEN UP";
+            penDown = false;
           } else if (incomingByte == 'd') {
-            pInstr = downPos;
-            pString = "PEN DOWN";
+            penDown = true;
           }
           
         }
@@ -162,81 +647,59 @@ void loop() {
           time *= 10;
           time = ((incomingByte - 48) + time);
         }
-        
-        xDist = xCoord - x + xPrime;
-        yDist = yCoord - y + yPrime;
-        axd = abs(xDist);
-        ayd = abs(yDist);
 
-        if (axd > ayd) { // x is max speed, y is fraction of max
-          
-          if (xDist < 0) { // pen moves up, send high signal
-            xInstr = 180;
-            
-          } else { // pen moves down, send low signal
-            xInstr = 0;
-            
-          }
+        // Ready for the next point while this one is still being drawn, so it is here by the time this move ends
+        Serial.print(">r\r");
 
-          if (yDist < 0) { // pen moves left, send low signal
-            yInstr = 90 * (1 - ((double)ayd / (double)axd));
-            
-          } else { // pen moves right, send high signal
-            yInstr = 90 * (1 + ((double)ayd / (double)axd));
-            
-          }
-          
-          xServo.write(xInstr);
-          yServo.write(yInstr);
-          penServo.write(pInstr);
-          delay(time);
-          xServo.write(90); // So the servo doesn't overshoot
-          yServo.write(90);
-          Serial.print(">r\r");
-          
-          x = xCoord + xPrime;
-          y = yCoord + yPrime;
-          
-        } else {
-          
-          if (xDist < 0) { // pen moves right, send high signal
-            xInstr = 90 * (1 + ((double)axd / (double)ayd));
-            
-          } else { // pen moves left, send low signal
-            xInstr = 90 * (1 - ((double)axd / (double)ayd));
-          }
+        if (movePlanned) {
+          movePlanned = false;
+          moveTo(xCoord, yCoord, penDown, plannedTime, plannedEntrySpeed, plannedExitSpeed);
+        } else { // no 'v' line, so the move starts and ends at rest
+          moveTo(xCoord, yCoord, penDown, time, 0, 0);
+        }
+        break;
 
-          if (yDist < 0) { // pen moves left, send low signal
-            yInstr = 0;
-            
-          } else { // pen moves right, send high signal
-            yInstr = 180;
-            
-          }
+      case 'v': // v means it's receiving the time and speeds of the next point
 
-          xServo.write(xInstr);
-          yServo.write(yInstr);
-          penServo.write(pInstr);
-          delay(time);
-          xServo.write(90); // So the servo doesn't overshoot
-          yServo.write(90);
-          Serial.print(">r\r");
-          
-          x = xCoord + xPrime;
-          y = yCoord + yPrime;
-          
+        while (true) { // time block
+
+          incomingByte = Serial.read();
+          if (incomingByte == '.') // period moves to entry speed block
+            break;
+          if (incomingByte == 255) // if serial comm is too slow it sends nothing (255)
+            continue;
+
+          time *= 10;
+          time = ((incomingByte - 48) + time);
         }
-        
-        // Debugging Block
-        Serial.print(">X: ");
-        Serial.print(x);
-        Serial.print(" | Y: ");
-        Serial.print(y);
-        Serial.print(" | ");
-        Serial.print(pString);
-        Serial.print(" | DELAY: ");
-        Serial.print(time);
-        Serial.println("\r");
+
+        while (true) { // entry speed block, in thousandths of inches/second
+
+          incomingByte = Serial.read();
+          if (incomingByte == '.') // period moves to exit speed block
+            break;
+          if (incomingByte == 255) // if serial comm is too slow it sends nothing (255)
+            continue;
+
+          entrySpeed = entrySpeed * 10 + (incomingByte - 48);
+        }
+
+        while (true) { // exit speed block, in thousandths of inches/second
+
+          incomingByte = Serial.read();
+          if (incomingByte == '\n') // newline ends data
+            break;
+          if (incomingByte == 255) // if serial comm is too slow it sends nothing (255)
+            continue;
+
+          exitSpeed = exitSpeed * 10 + (incomingByte - 48);
+        }
+
+        // Answered by the 'p' line that comes with it
+        movePlanned = true;
+        plannedTime = time;
+        plannedEntrySpeed = entrySpeed / 1000;
+        plannedExitSpeed = exitSpeed / 1000;
         break;
         
       case 'c': // c means it's the initial configuration block
@@ -273,47 +736,8 @@ void loop() {
           time = ((incomingByte - 48) + time);
         }
 
-        if (xPrime > yPrime) {
-          
-          xInstr = 0;
-          yInstr = 90 * (1 + ((double)yPrime / (double)xPrime));
-
-          xServo.write(xInstr);
-          yServo.write(yInstr);
-          penServo.write(neutralPos); 
-          delay(time);
-          xServo.write(90);
-          yServo.write(90);
-          x = xPrime;
-          y = yPrime;
-          
-        } else {
-          
-          xInstr = 90 * (1 - ((double)xPrime / (double)yPrime));
-          yInstr = 180;
-
-          xServo.write(xInstr);
-          yServo.write(yInstr);
-          penServo.write(neutralPos); 
-          delay(time);
-          xServo.write(90);
-          yServo.write(90);
-          x = xPrime;
-          y = yPrime;
-          
-        }
-        
+        configure(time);
         Serial.print(">r\r");
-        // Debugging
-        Serial.print(">");
-        Serial.print("x': ");
-        Serial.print(xPrime);
-        Serial.print(", y': ");
-        Serial.print(yPrime);
-        Serial.print(" | PEN UP");
-        Serial.print(" | DELAY: ");
-        Serial.print(time);
-        Serial.println("\r");
         break;
 
        case 'q': // q means you're setting the inch-pixel ratio
@@ -331,21 +755,20 @@ void loop() {
           temp += (char)incomingByte;
         }
         
-        ipr = temp.toFloat();
-
+        setIpr(temp.toFloat());
         Serial.print(">r\r");
-        Serial.print(">");
-        Serial.print("Inch-Pixel Ratio: ");
-        Serial.print(ipr);
-        Serial.println("\r");
         break;
 
        case 'z': // z means serial communication has been completed
         
         Serial.print(">r\r");
-        Serial.print(">");
-        Serial.print("d");
-        Serial.println("\r");
+        finishPath();
+        break;
+
+      case FRAME_START: // a binary frame, read by pollSerial()
+        inFrame = true;
+        framePos = 0;
+        frameStarted = millis();
         break;
         
     }
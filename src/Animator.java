@@ -128,15 +128,15 @@ public class Animator extends JPanel implements ActionListener {
         for (Picture.Island i : pg.getPic().getRegions()) {
             islands.add(i);
         }
-        image = new BufferedImage(pg.getPic().getPicture()[0].length,
-                pg.getPic().getPicture().length, BufferedImage.TYPE_3BYTE_BGR);
-        finalImage = new BufferedImage(pg.getPic().getPicture()[0].length,
-                pg.getPic().getPicture().length, BufferedImage.TYPE_3BYTE_BGR);
+        image = new BufferedImage(pg.getPic().getRightBound(),
+                pg.getPic().getBottomBound(), BufferedImage.TYPE_3BYTE_BGR);
+        finalImage = new BufferedImage(pg.getPic().getRightBound(),
+                pg.getPic().getBottomBound(), BufferedImage.TYPE_3BYTE_BGR);
     }
 
     // Sets the window size to the pixel size of the image (gives a good visual representation of size)
     public Dimension getPreferredSize() {
-        return new Dimension(pg.getPic().getPicture()[0].length, pg.getPic().getPicture().length);
+        return new Dimension(pg.getPic().getRightBound(), pg.getPic().getBottomBound());
     }
 
     @Override
@@ -182,18 +182,18 @@ public class Animator extends JPanel implements ActionListener {
             if (index == 0) {
                 x1 = 0;
                 y1 = 0;
-                x2 = path.getPath().get(0).getKey().getY();
-                y2 = path.getPath().get(0).getKey().getX();
+                x2 = path.getY(0);
+                y2 = path.getX(0);
 
             } else {
-                x1 = path.getPath().get(index - 1).getKey().getY();
-                y1 = path.getPath().get(index - 1).getKey().getX();
-                x2 = path.getPath().get(index).getKey().getY();
-                y2 = path.getPath().get(index).getKey().getX();
+                x1 = path.getY(index - 1);
+                y1 = path.getX(index - 1);
+                x2 = path.getY(index);
+                y2 = path.getX(index);
             }
 
             // Red if pen is down, green otherwise
-            if (path.getPath().get(index).getValue()) {
+            if (path.isPenDown(index)) {
                 c = Color.RED;
 
                 g.setColor(c);
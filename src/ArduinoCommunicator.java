@@ -38,18 +38,20 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Vector;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javafx.application.Platform;
 import javafx.embed.swing.JFXPanel;
 import jssc.*;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.text.DefaultCaret;
 
@@ -59,10 +61,20 @@ public class ArduinoCommunicator {
     private static SerialPort serialPort;
 
     // ready is a variable tracking whether the Arduino has processed one set of instructions and is ready
-    // to receive the next set. done tracks whether serial communication is finished. advanced indicates
-    // whether the user is advanced and can modify special values.
+    // to receive the next set. credits counts the instructions that can be sent before the Arduino makes room for
+    // more, never more than window (its queue size, or 1 for text lines), and resendFrom is the sequence number of
+    // a frame it lost (-1 if none). done tracks whether serial communication is finished. speaksBinary tracks
+    // whether it answered the hello frame. textProtocol is set if the user asked for the text protocol. handshake
+    // holds the Arduino's answers while the serial rate is set up. advanced indicates whether the user is advanced
+    // and can modify special values.
     private static boolean ready = false;
+    private static AtomicInteger credits = new AtomicInteger(0);
+    private static volatile int window = 1;
+    private static AtomicInteger resendFrom = new AtomicInteger(-1);
     private static boolean done = false;
+    private static boolean speaksBinary = false;
+    private static boolean textProtocol = false;
+    private static LinkedBlockingQueue<String> handshake = new LinkedBlockingQueue<>();
     private static boolean advanced = false;
     private static boolean receiveData = true;
     private static boolean pass = false;
@@ -72,6 +84,18 @@ public class ArduinoCommunicator {
 
     private static JTextArea ta;
 
+    // Time allowed for making a path before the generator switches to cheaper heuristics
+    private static final long GENERATION_BUDGET_MS = 60000;
+
+    // Time the Arduino gets to answer the hello frame before the path goes out as text
+    private static final long HELLO_TIMEOUT_MS = 1000;
+
+    // Time the Arduino gets for each answer while a faster serial rate is tried, and how long it stays at a rate that
+    // failed before going back to the base rate (BAUD_TRIAL_TIMEOUT in JavaCommunicator.ino)
+    private static final long BAUD_TIMEOUT_MS = 500;
+    private static final long BAUD_TRIAL_MS = 2000;
+    private static final int KEEP_TRIES = 3; // keep rate frames sent before giving up on their answer
+
     // Reads incoming messages from the Arduino
     private static class PortReader implements SerialPortEventListener {
 
@@ -103,10 +127,21 @@ public class ArduinoCommunicator {
                                     @Override public void run() {
                                         if (toProcess.equals("r")) {
                                             ready = true;
+                                            credits.updateAndGet(c -> Math.min(c + 1, window));
                                             System.out.print("");
                                         } else if (toProcess.equals("d")) {
                                             done = true;
                                             System.out.print("");
+                                        } else if (toProcess.matches("e\\d+")) {
+                                            resendFrom.set(Integer.parseInt(toProcess.substring(1)));
+                                            System.out.print("");
+                                        } else if (toProcess.matches("s\\d+|t\\w*|o")) {
+                                            handshake.add(toProcess);
+                                        } else if (toProcess.matches("b\\d+")) {
+                                            window = Integer.parseInt(toProcess.substring(1)); // queue size
+                                            credits.set(window);
+                                            speaksBinary = true;
+                                            System.out.print("");
                                         } else {
                                             if (receiveData) {
                                                 System.out.println(toProcess);
@@ -156,6 +191,132 @@ public class ArduinoCommunicator {
         return lastWord;
     }
 
+    // Opens the link at baudRate. Flow control is set again since changing the rate may reset it.
+    private static void setBaudRate(int baudRate) throws SerialPortException {
+        serialPort.setParams(baudRate, 8, 1, 0);
+        serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT);
+    }
+
+    // Tries the faster serial rates, fastest first, and keeps the first one the test pattern gets through both ways
+    // at. After a failed test both ends go back to the base rate, the Arduino once its trial runs out. Older Arduino
+    // code doesn't answer, so the link stays at the base rate.
+    private static int negotiateBaudRate() throws SerialPortException, InterruptedException {
+        for (int rate : PlotterProtocol.BAUD_RATES) {
+            handshake.clear();
+            serialPort.writeBytes(PlotterProtocol.baudRate(rate));
+
+            String answer = handshake.poll(BAUD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (answer == null) {
+                break;
+            } else if (!answer.equals("s" + rate)) { // the Arduino can't run at it and stays where it is
+                continue;
+            }
+
+            if (testBaudRate(rate)) {
+                System.out.println("Serial link: " + rate + " baud\n");
+                return rate;
+            }
+
+            System.out.println(rate + " baud failed its test pattern.");
+            Thread.sleep(BAUD_TRIAL_MS);
+            setBaudRate(PlotterProtocol.BASE_BAUD_RATE);
+        }
+
+        System.out.println("Serial link: " + PlotterProtocol.BASE_BAUD_RATE + " baud\n");
+        return PlotterProtocol.BASE_BAUD_RATE;
+    }
+
+    // Follows the Arduino to rate, sends it the test pattern and keeps the rate if the echo comes back unchanged
+    private static boolean testBaudRate(int rate) throws InterruptedException {
+        try {
+            Thread.sleep(20); // the Arduino switches once its answer is out
+            setBaudRate(rate);
+            handshake.clear();
+
+            for (int i = 0; i < PlotterProtocol.TEST_FRAMES; i++) {
+                serialPort.writeBytes(PlotterProtocol.testPattern(i));
+            }
+            if (!("t" + PlotterProtocol.TEST_ECHO).equals(handshake.poll(BAUD_TIMEOUT_MS, TimeUnit.MILLISECONDS))) {
+                return false;
+            }
+
+            // The Arduino keeps the rate on the first keep rate frame that reaches it. Falling back after losing just
+            // its answer would leave the two ends at different rates, so the frame is sent again until one answer
+            // comes through.
+            for (int i = 0; i < KEEP_TRIES; i++) {
+                serialPort.writeBytes(PlotterProtocol.keepBaudRate());
+                if ("o".equals(handshake.poll(BAUD_TIMEOUT_MS, TimeUnit.MILLISECONDS))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (SerialPortException e) { // the port can't run at it
+            return false;
+        }
+    }
+
+    // Sends the hello frame unless the text protocol was chosen, and settles on binary frames if the Arduino answers
+    // in time. Otherwise the path goes out as text lines, which older Arduino code reads too.
+    private static PlotterProtocol negotiateProtocol() throws SerialPortException {
+        resendFrom.set(-1); // frames lost while the serial rate was set up aren't part of the path
+
+        if (!textProtocol) {
+            serialPort.writeBytes(PlotterProtocol.hello());
+
+            long start = System.currentTimeMillis();
+            while (!speaksBinary && System.currentTimeMillis() - start < HELLO_TIMEOUT_MS) {
+                try {
+                    Thread.sleep(10);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                System.out.print(""); // syncs multithread processing
+            }
+        }
+
+        if (!textProtocol && !speaksBinary) {
+            System.out.println("The Arduino didn't answer the hello frame, so it is running older Arduino code. The path");
+            System.out.println("goes out as text lines, which it can read, but every move starts and ends at rest.");
+            System.out.println("Update it to the Arduino code that comes with this version for smoother strokes.");
+        }
+
+        PlotterProtocol protocol = new PlotterProtocol(speaksBinary);
+        if (protocol.isBinary()) {
+            System.out.println("Serial protocol: binary frames, up to " + credits.get() + " in flight\n");
+        } else {
+            System.out.println("Serial protocol: text lines, one at a time\n");
+        }
+        return protocol;
+    }
+
+    // Prints how long the planned moves take to plot
+    private static void printPlotTime(MotionPlanner planner) {
+        System.out.println("Planned plot time: " + String.format("%.1f", planner.getPlotTime() / 60000.0) +
+                " minutes (" + String.format("%.1f", planner.getStopTime() / 60000.0) +
+                " if the plotter stopped at every point).");
+    }
+
+    // Turns a planned move into instructions for the Arduino and adds them to the buffer. The first point of a path
+    // is the configuration block (ipr, then x' and y'); every other point is a move, with the speeds it starts and
+    // ends at. The instructions are encoded once the protocol is agreed on.
+    private static void addToBuffer(Vector<PlotterProtocol.Command> buffer, int pathIndex, int x, int y,
+                                    boolean penDown, int time, int entrySpeed, int exitSpeed, int steadyTime,
+                                    double ipr, double xPrime, double yPrime) {
+        if (pathIndex == 0) { // configuration block - ipr and x' and y'
+            buffer.add(PlotterProtocol.Command.inchPixelRatio(ipr));
+            System.out.print("");
+            // The Arduino makes this move at a steady speed, so it gets the steady time
+            buffer.add(PlotterProtocol.Command.configuration((int) xPrime, (int) yPrime, steadyTime));
+            // ready = false;
+            System.out.print(""); // NEED THIS HERE TO RESOLVE A MULTITHREAD PROCESSING GLITCH
+
+        } else {
+            buffer.add(PlotterProtocol.Command.move(x, y, penDown, time, entrySpeed, exitSpeed, steadyTime));
+            // ready = false;
+            System.out.print("");
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException, IOException {
 
         // MAKES THE PROGRAM OPEN IN AN APPLET - This block was found and slightly modified from StackExchange.
@@ -297,7 +458,7 @@ public class ArduinoCommunicator {
         double pixelThresholdPercent = .01;
         int thickness = 5; // fairly static, not sure if I will change it
         double rgbSensitivityThreshold = 48; // just a default value, will be changed in the code
-        BufferedImage image = null;
+        File imageFile = null;
 
         // Selection menu for samples. Will work on ability to pass in images at will.
         while (true) {
@@ -355,7 +516,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 48;
-                        image = ImageIO.read(img1);
+                        imageFile = img1;
                         invalid = false;
                         break;
 
@@ -363,7 +524,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 48;
-                        image = ImageIO.read(img2);
+                        imageFile = img2;
                         invalid = false;
                         break;
 
@@ -371,7 +532,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 216;
-                        image = ImageIO.read(img3);
+                        imageFile = img3;
                         invalid = false;
                         break;
 
@@ -379,7 +540,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 48;
-                        image = ImageIO.read(img4);
+                        imageFile = img4;
                         invalid = false;
                         break;
 
@@ -387,7 +548,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 48;
-                        image = ImageIO.read(img5);
+                        imageFile = img5;
                         invalid = false;
                         break;
 
@@ -395,7 +556,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 192;
-                        image = ImageIO.read(img6);
+                        imageFile = img6;
                         invalid = false;
                         break;
 
@@ -403,7 +564,7 @@ public class ArduinoCommunicator {
                         moveOn = true;
                         if (!advanced)
                             rgbSensitivityThreshold = 192;
-                        image = ImageIO.read(img7);
+                        imageFile = img7;
                         invalid = false;
                         break;
 
@@ -497,6 +658,23 @@ public class ArduinoCommunicator {
                         System.out.println("\nPlease enter a number between 0 and 255!\n");
                     }
                 }
+
+                System.out.println();
+                System.out.println("________________________________________________________");
+                System.out.println();
+                System.out.println("\n[ADVANCED]");
+                System.out.println("Choose the SERIAL PROTOCOL. Enter \"T\" to send the path as text lines, one at a");
+                System.out.println("time. Anything else sends compact binary frames. Text lines also work with older");
+                System.out.println("Arduino code.\n");
+
+                String protocol = getInput();
+
+                if (protocol.equals("T") || protocol.equals("t")) {
+                    textProtocol = true;
+                    System.out.println("\nSerial Protocol set to: TEXT\n");
+                } else {
+                    System.out.println("\nSerial Protocol set to: BINARY\n");
+                }
             }
 
             if (!freeDraw) {
@@ -542,7 +720,9 @@ public class ArduinoCommunicator {
             return;
         }
 
-        ArrayList<String> buffer = new ArrayList<>(); // the buffer object that will hold the path instructions
+        // the buffer object that will hold the path instructions. A Vector, since the path can still be filling it
+        // while it is being sent
+        Vector<PlotterProtocol.Command> buffer = new Vector<>();
 
         if(!freeDraw) {
             System.out.print("\nPROCESSING DATA! PLEASE BE PATIENT");
@@ -557,64 +737,93 @@ public class ArduinoCommunicator {
             System.out.println("\n");
 
 
-            // Block that generates the path
-            Picture pic = new Picture(image, pixelThresholdPercent, rgbSensitivityThreshold);
-            int subIslandPixelThreshold = pic.getPixelThreshold();
-            PathGenerator pg = new PathGenerator(pic, thickness, subIslandPixelThreshold);
-            Path path = pg.makePath();
-            ArrayList<Path.Point<Picture.Pixel, Boolean>> pathList = path.getPath();
-
-            // useful variables
-            int pathLength = pathList.size();
-            int pathIndex = 0;
-            double xPrime = pg.getxPrime(); // x' and y' are the adjusted coordinates for the starting position of the marker after centering
-            double yPrime = pg.getyPrime();
-            double ipr = pg.getIpr(); // inch-pixel ratio
-
-            String penString;
+            // Block that generates the path, or loads it from the cache if this image was already turned into a
+            // path with the same settings. The image is decoded straight at the resolution the plotter can draw.
+            PathCache cache = new PathCache(new File("paths"));
+            String cacheKey = PathCache.key(imageFile, pixelThresholdPercent, rgbSensitivityThreshold, thickness);
+            PathFile.Reader point = cache.get(cacheKey);
 
             // Filling the buffer - we store the buffer processor-side because there's a limit to the size
             // of the serial communication buffer for the Arduino (64 bytes)
-            while (pathIndex < pathLength) {
-
-                Path.Point<Picture.Pixel, Boolean> point = pathList.get(pathIndex);
-                String toSend = "";
-
-                if (pathList.get(pathIndex).getValue()) {
-                    penString = "d";
-                } else {
-                    penString = "u";
+            if (point != null) {
+                PathFile.Reader cached = point;
+                MotionPlanner planner = new MotionPlanner(cached.getSpeedProfile(), cached.getIpr(),
+                        (position, x, y, penDown, time, entrySpeed, exitSpeed, steadyTime) ->
+                                addToBuffer(buffer, position, x, y, penDown, time, entrySpeed, exitSpeed,
+                                        steadyTime, cached.getIpr(), cached.getxPrime(), cached.getyPrime()));
+
+                while (point.next()) {
+                    planner.addPoint(point.getX(), point.getY(), point.isPenDown(), point.getTime());
                 }
+                planner.finish();
+                buffer.add(PlotterProtocol.Command.done());
+                printPlotTime(planner);
 
-                if (pathIndex == 0) { // configuration block - ipr and x' and y'
-                    toSend = toSend + "q" + ipr + "\n";
-                    buffer.add(toSend);
-                    System.out.print("");
-                    toSend = "";
-                    toSend = toSend + "c" + (int) xPrime + "." + (int) yPrime + "." + point.getTime() + "\n";
-                    buffer.add(toSend);
-                    // ready = false;
-                    System.out.print(""); // NEED THIS HERE TO RESOLVE A MULTITHREAD PROCESSING GLITCH
-
-                } else if (pathIndex == pathLength - 1) {
-                    toSend = toSend + "p" + point.getKey().getX() + "." + point.getKey().getY() + "." + penString + "." + point.getTime() + "\n";
-                    buffer.add(toSend);
-                    System.out.print("");
-                    buffer.add("z");
-                    // ready = false;
-                    System.out.print("");
-
-                } else {
-                    toSend = toSend + "p" + point.getKey().getX() + "." + point.getKey().getY() + "." + penString + "." + point.getTime() + "\n";
-                    buffer.add(toSend);
-                    // ready = false;
-                    System.out.print("");
-                }
+            } else {
+                Picture pic = PathGenerator.pictureAtPlotterResolution(imageFile, pixelThresholdPercent,
+                        rgbSensitivityThreshold, thickness);
+                int subIslandPixelThreshold = pic.getPixelThreshold();
+                PathGenerator pg = new PathGenerator(pic, thickness, subIslandPixelThreshold);
+                double rgbThreshold = rgbSensitivityThreshold;
+
+                // Islands are planned in parallel and stitched together as their plans come in, each time going on
+                // to the closest island left. Each point goes into the buffer as soon as it is finished, so printing
+                // can start once the first island is planned, while the rest of the path is still being made. The finished path goes into the cache at the end.
+                // Progress is printed every 10% of the picture covered.
+                Thread generator = new Thread(() -> {
+                    Path path = new Path();
+                    MotionPlanner planner = new MotionPlanner(pg.getSpeedProfile(), pg.getIpr(),
+                            (position, x, y, penDown, time, entrySpeed, exitSpeed, steadyTime) ->
+                                    addToBuffer(buffer, position, x, y, penDown, time, entrySpeed, exitSpeed,
+                                            steadyTime, pg.getIpr(), pg.getxPrime(), pg.getyPrime()));
+                    int[] lastTenth = {0};
+
+                    PathGenerator.Budget budget = new PathGenerator.Budget(GENERATION_BUDGET_MS,
+                            (pixelsCovered, pixelCount, islandsLeft) -> {
+                                int tenth = (int)(10L * pixelsCovered / Math.max(1, pixelCount));
+                                if (tenth > lastTenth[0]) {
+                                    lastTenth[0] = tenth;
+                                    System.out.println("Path " + (10 * tenth) + "% done, " + islandsLeft +
+                                            " island(s) left.");
+                                }
+                            });
+
+                    pg.makePathParallel((x, y, penDown, time) -> {
+                        path.addPoint(x, y, penDown, time);
+                        planner.addPoint(x, y, penDown, time);
+                    }, budget);
+                    planner.finish();
+                    buffer.add(PlotterProtocol.Command.done());
+
+                    // A path finished with the simpler rules isn't cached, or every later run of the image would
+                    // get it too
+                    boolean cacheable = !budget.isSpent() && !budget.isCancelled();
+                    if (budget.isSpent()) {
+                        System.out.println("The path took longer than " + (GENERATION_BUDGET_MS / 1000) +
+                                " seconds, so the rest of it was made with simpler rules. It won't be cached.");
+                    }
 
-                pathIndex++;
+                    System.out.println("\nPath finished: " + path.length() + " points.");
+                    System.out.println("Estimated plot time: " +
+                            String.format("%.1f", pg.getPlotTime() / 60000.0) + " minutes (" +
+                            String.format("%.1f", pg.getUniformPlotTime() / 60000.0) +
+                            " if every move were slowed down by the same ratio).");
+                    printPlotTime(planner);
 
+                    if (cacheable) {
+                        try {
+                            cache.put(cacheKey, path, pg, rgbThreshold, pixelThresholdPercent);
+                        } catch (IOException e) {
+                            System.out.println("Could not save the path to the cache: " + e.getMessage());
+                        }
+                    }
+                });
+                generator.setDaemon(true);
+                generator.start();
             }
 
+            System.out.println("Path cache: " + cache.getHits() + " hit(s), " + cache.getMisses() + " miss(es).\n");
+
             /* DEBUGGING BLOCK
             for (int i = 0; i < portNames.length; i++) {
                 System.out.println(portNames[i]);
@@ -636,8 +845,7 @@ public class ArduinoCommunicator {
                 // Finding valid port + serial communication settings
                 serialPort = new SerialPort(portNames[index]);
                 serialPort.openPort();
-                serialPort.setParams(9600,8,1,0);
-                serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT);
+                setBaudRate(PlotterProtocol.BASE_BAUD_RATE);
                 serialPort.addEventListener(new PortReader(), SerialPort.MASK_RXCHAR);
                 serialPort.writeString("y");
 
@@ -649,6 +857,8 @@ public class ArduinoCommunicator {
                     System.out.print(""); // syncs multithread processing
                 }
 
+                negotiateBaudRate();
+
                 System.out.println("________________________________________________________");
                 System.out.println();
                 System.out.println("Do you need to remove the marker? Enter \"Y\" to eject the marker,");
@@ -740,16 +950,34 @@ public class ArduinoCommunicator {
                     System.out.println();
                     System.out.println("***** Printing... *****\n");
 
-                    // communicates instructions one at a time to the Arduino. only communicates as quickly as the
-                    // the Arduino is ready to receive (that's the purpose of the ready variable).
+                    // communicates instructions to the Arduino. only communicates as quickly as the Arduino makes
+                    // room for them (that's the purpose of the credits). binary frames keep several in flight so
+                    // sending overlaps drawing; text lines go one at a time.
 
                     ta.setCaretPosition(ta.getDocument().getLength());
 
+                    PlotterProtocol protocol = negotiateProtocol();
+
                     while (true) {
                         System.out.print("");
-                        if (bufferIndex < buffer.size() && ready) {
-                            ready = false;
-                            serialPort.writeString(buffer.get(bufferIndex));
+
+                        // the Arduino lost a frame, so it and everything after it goes again. sequence numbers wrap at
+                        // 256, so only the last 255 frames sent can be told apart. the Arduino also asks again for
+                        // the next frame while the path is still being made; that one isn't sent yet, so nothing is.
+                        int lost = resendFrom.getAndSet(-1);
+                        for (int resendIndex = bufferIndex - 1;
+                             lost >= 0 && resendIndex >= Math.max(0, bufferIndex - 255); resendIndex--) {
+                            if ((resendIndex & 0xFF) == lost) {
+                                int resent = bufferIndex - resendIndex;
+                                credits.updateAndGet(c -> Math.min(c + resent, window));
+                                bufferIndex = resendIndex;
+                                break;
+                            }
+                        }
+
+                        if (bufferIndex < buffer.size() && credits.get() > 0) {
+                            credits.decrementAndGet();
+                            serialPort.writeBytes(protocol.encode(buffer.get(bufferIndex), bufferIndex));
                             bufferIndex++;
                         }
                         if (done) break;
@@ -0,0 +1,219 @@
+/**
+ * Author: Albert Li
+ * Start Date: 10/18/26
+ *
+ * Description: Plans how fast the plotter moves through a path so it only stops where it has to. Each move speeds up
+ * and slows down at ACCELERATION (a trapezoid: speed up, cruise, slow down), and the speed a move may keep into the
+ * next one comes from the angle between them (junction deviation): straight and gently turning strokes flow through
+ * their points, sharp corners, pen changes and moves in place stop. The plan looks LOOKAHEAD moves ahead and always
+ * leaves room to stop at the end of what it has seen, so points can be fed in while the path is still being made.
+ *
+ * Every move goes out with its time and the speeds it starts and ends at. The Arduino runs the same trapezoid, so it
+ * has to use the same ACCELERATION. The time the point came with, the move at a steady speed, goes out too, for
+ * Arduino code that can't change speed within a move.
+ *
+ * Changelog:
+ *
+ *      v1.0.0 - 10/18/26
+ *          - Trapezoid moves with junction deviation speeds, planned LOOKAHEAD moves ahead
+ *          - Passes on each point's steady time for older Arduino code
+ */
+
+import java.util.ArrayList;
+
+public class MotionPlanner implements PathGenerator.PointSink {
+
+    //******************************//
+    //***** INSTANCE VARIABLES *****//
+    //******************************//
+
+    public static final double ACCELERATION = 20; // inches/second^2 - must match ACCELERATION in JavaCommunicator.ino
+    public static final double JUNCTION_DEVIATION = 0.02; // inches - how far a corner taken without stopping may be
+                                                           // rounded off, well under the marker's width
+    public static final int LOOKAHEAD = 64; // moves planned before the oldest goes out
+    public static final int SPEED_UNITS = 1000; // speeds go out in thousandths of inches/second
+
+    private SpeedProfile speeds;
+    private double ipr;
+    private MoveSink sink;
+
+    private ArrayList<Move> planned; // moves not sent yet, oldest first
+    private int received; // points fed in so far
+    private int lastX;
+    private int lastY;
+    private double entrySpeed; // speed the oldest planned move starts at, fixed once the move before it went out
+
+    private long plotTime; // ms - planned moves sent so far
+    private long stopTime; // ms - the same moves if every one started and ended at rest
+
+    //******************************//
+    //***** ENCAPSULATED CLASS *****//
+    //******************************//
+
+    // Gets every move once it is planned, in path order, one for each point fed in. Speeds are in SPEED_UNITS.
+    public interface MoveSink {
+        void addMove(int position, int x, int y, boolean penDown, int time, int entrySpeed, int exitSpeed,
+                     int steadyTime);
+    }
+
+    private static class Move {
+
+        private int position;
+        private int x;
+        private int y;
+        private boolean penDown;
+        private int steadyTime; // ms - the point's own time, at a steady speed from start to end
+        private double length; // inches
+        private double ux; // direction, as a unit vector
+        private double uy;
+        private double topSpeed; // inches/second
+        private double junctionSpeed; // fastest it may end at and still take the turn into the next move
+        private double exitSpeed; // planned speed at its end
+
+        private Move(int position, int fromX, int fromY, int x, int y, boolean penDown, int steadyTime, double ipr,
+                     SpeedProfile speeds) {
+            this.position = position;
+            this.x = x;
+            this.y = y;
+            this.penDown = penDown;
+            this.steadyTime = steadyTime;
+
+            double pixels = Math.hypot(x - fromX, y - fromY);
+            this.length = ipr * pixels;
+            if (pixels > 0) {
+                this.ux = (x - fromX) / pixels;
+                this.uy = (y - fromY) / pixels;
+            }
+            this.topSpeed = speeds.topSpeed(ipr, fromX, fromY, x, y, penDown);
+        }
+    }
+
+    //************************//
+    //***** CONSTRUCTORS *****//
+    //************************//
+
+    public MotionPlanner(SpeedProfile speeds, double ipr, MoveSink sink) {
+        this.speeds = speeds;
+        this.ipr = ipr;
+        this.sink = sink;
+        this.planned = new ArrayList<>();
+    }
+
+    //***************************//
+    //***** GETTERS/SETTERS *****//
+    //***************************//
+
+    // Estimated ms to plot the moves sent so far
+    public long getPlotTime() {
+        return plotTime;
+    }
+
+    // Estimated ms to plot the moves sent so far if the plotter stopped at every point
+    public long getStopTime() {
+        return stopTime;
+    }
+
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
+
+    // Adds the next point of the path. The move is timed again here; the point's own time is only passed on.
+    @Override
+    public void addPoint(int x, int y, boolean penDown, int time) {
+        Move move = new Move(received, lastX, lastY, x, y, penDown, time, ipr, speeds);
+
+        if (!planned.isEmpty()) {
+            Move previous = planned.get(planned.size() - 1);
+            previous.junctionSpeed = junctionSpeed(previous, move);
+        }
+
+        planned.add(move);
+        received++;
+        lastX = x;
+        lastY = y;
+
+        if (planned.size() > LOOKAHEAD) {
+            plan();
+            send(planned.remove(0));
+        }
+    }
+
+    // Sends every move still planned, ending the path at rest
+    public void finish() {
+        plan();
+        while (!planned.isEmpty()) {
+            send(planned.remove(0));
+        }
+    }
+
+    // Fastest the plotter may go from previous into next without stopping. The first move of a path is the
+    // configuration move, which always ends at rest, and so do moves in place and moves followed by a pen change.
+    private double junctionSpeed(Move previous, Move next) {
+        if (previous.position == 0 || previous.length == 0 || next.length == 0 ||
+                previous.penDown != next.penDown) {
+            return 0;
+        }
+
+        double speed = Math.min(previous.topSpeed, next.topSpeed);
+
+        // The turn is taken as an arc that comes within JUNCTION_DEVIATION of the corner, at the speed that keeps
+        // the sideways acceleration around it at ACCELERATION
+        double cosTheta = -(previous.ux * next.ux + previous.uy * next.uy);
+        double sinHalfTheta = Math.sqrt(Math.max(0, 0.5 * (1 - cosTheta)));
+
+        if (sinHalfTheta < 1 - 1e-9) {
+            speed = Math.min(speed,
+                    Math.sqrt(ACCELERATION * JUNCTION_DEVIATION * sinHalfTheta / (1 - sinHalfTheta)));
+        }
+        return speed;
+    }
+
+    // Plans the end speed of every move not sent yet. Going backwards, each move ends slow enough for the rest to
+    // stop by the end of what has been seen; going forwards, it ends no faster than it can speed up to.
+    private void plan() {
+        double next = 0; // fastest the move after this one may start
+        for (int i = planned.size() - 1; i >= 0; i--) {
+            Move move = planned.get(i);
+            move.exitSpeed = i == planned.size() - 1 ? 0 : Math.min(move.junctionSpeed, next);
+            next = Math.sqrt(move.exitSpeed * move.exitSpeed + 2 * ACCELERATION * move.length);
+        }
+
+        double entry = entrySpeed;
+        for (Move move : planned) {
+            double exit = Math.min(move.exitSpeed, Math.sqrt(entry * entry + 2 * ACCELERATION * move.length));
+
+            // Rounded down to what can be sent, so both ends agree on it
+            move.exitSpeed = Math.floor(exit * SPEED_UNITS) / SPEED_UNITS;
+            entry = move.exitSpeed;
+        }
+    }
+
+    private void send(Move move) {
+        int time = moveTime(move, entrySpeed, move.exitSpeed);
+
+        plotTime += time;
+        stopTime += moveTime(move, 0, 0);
+        sink.addMove(move.position, move.x, move.y, move.penDown, time, (int) Math.round(entrySpeed * SPEED_UNITS),
+                (int) Math.round(move.exitSpeed * SPEED_UNITS), move.steadyTime);
+
+        entrySpeed = move.exitSpeed;
+    }
+
+    // Time in ms for move to go from entry to exit speed: it speeds up to its top speed (or as close as its length
+    // allows), cruises, and slows down again. Rounds up, so it is never faster than planned.
+    private int moveTime(Move move, double entry, double exit) {
+        if (move.length == 0) {
+            return speeds.getPenLoweringTime();
+        }
+
+        double cruise = Math.min(move.topSpeed,
+                Math.sqrt(ACCELERATION * move.length + 0.5 * (entry * entry + exit * exit)));
+        double speedingUp = (cruise * cruise - entry * entry) / (2 * ACCELERATION); // inches
+        double slowingDown = (cruise * cruise - exit * exit) / (2 * ACCELERATION);
+        double seconds = (cruise - entry) / ACCELERATION + (cruise - exit) / ACCELERATION +
+                Math.max(0, move.length - speedingUp - slowingDown) / cruise;
+
+        return Math.max(speeds.getMinTime(), (int) Math.ceil(1000 * seconds));
+    }
+
+}
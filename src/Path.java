@@ -33,6 +33,8 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class Path {
 
@@ -40,46 +42,53 @@ public class Path {
     //***** INSTANCE VARIABLES *****//
     //******************************//
 
-    private ArrayList<Point<Picture.Pixel, Boolean>> path;
+    // Points are stored as columns of primitives, CHUNK_SIZE points per chunk, so a path holds no Pixel (and
+    // through it no Picture) and grows without copying what is already there.
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private int[][] xs;
+    private int[][] ys;
+    private int[][] times;
+    private long[][] pens; // bit set when the pen is down moving to the point
+    private int length;
+    private HashMap<Long, ArrayList<Integer>> index; // positions by coordinates, in path order. Built on first use.
 
     //******************************//
     //***** ENCAPSULATED CLASS *****//
     //******************************//
 
-    public class Point<K, V> {
-
-        private K key;
-        private V value;
-        private int time;
+    // Reads a path front to back. Starts before the first point, so call next() before reading anything.
+    public class Cursor {
 
-        public Point(K key, V value, int time) {
-            this.key = key;
-            this.value = value;
-            this.time = time;
-        }
+        private int position = -1;
 
-        public void setKey(K key) {
-            this.key = key;
+        // Moves to the next point. Returns false once the path is used up.
+        public boolean next() {
+            if (position < length) {
+                position++;
+            }
+            return position < length;
         }
 
-        public void setValue(V value) {
-            this.value = value;
+        public int getPosition() {
+            return position;
         }
 
-        public void setTime(int time) {
-            this.time = time;
+        public int getX() {
+            return Path.this.getX(position);
         }
 
-        public K getKey() {
-            return key;
+        public int getY() {
+            return Path.this.getY(position);
         }
 
-        public V getValue() {
-            return value;
+        public boolean isPenDown() {
+            return Path.this.isPenDown(position);
         }
 
         public int getTime() {
-            return time;
+            return Path.this.getTime(position);
         }
     }
 
@@ -88,15 +97,36 @@ public class Path {
     //************************//
 
     public Path() {
-        this.path = new ArrayList<>();
+        this.xs = new int[1][];
+        this.ys = new int[1][];
+        this.times = new int[1][];
+        this.pens = new long[1][];
+        this.length = 0;
     }
 
     //***************************//
     //***** GETTERS/SETTERS *****//
     //***************************//
 
-    public ArrayList<Point<Picture.Pixel, Boolean>> getPath() {
-        return path;
+    public int getX(int position) {
+        return xs[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)];
+    }
+
+    public int getY(int position) {
+        return ys[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)];
+    }
+
+    public boolean isPenDown(int position) {
+        int offset = position & (CHUNK_SIZE - 1);
+        return (pens[position >>> CHUNK_BITS][offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    public int getTime(int position) {
+        return times[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)];
+    }
+
+    public void setTime(int position, int time) {
+        times[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)] = time;
     }
 
     //*******************//
@@ -105,32 +135,134 @@ public class Path {
 
     // [DEBUGGED] Adds a point to the path, specifies whether the pen should be up or down
     public void addPoint(Picture.Pixel p, boolean penDown, int time) {
-        path.add(new Point(p, penDown, time));
+        addPoint(p.getX(), p.getY(), penDown, time);
     }
 
-    // [DEBUGGED] Returns the point in the path that matches the coordinates of Pixel p
-    // Returns null if p isn't in the path
-    public Point<Picture.Pixel, Boolean> getMatchingPoint(Picture.Pixel p) {
-        for (Point<Picture.Pixel, Boolean> h : path) {
-            if (h.getKey() == p || (p.getX() == h.getKey().getX() &&
-                    p.getY() == h.getKey().getY())) {
-                return h;
+    public void addPoint(int x, int y, boolean penDown, int time) {
+        int chunk = length >>> CHUNK_BITS;
+        int offset = length & (CHUNK_SIZE - 1);
+
+        // Starts a new chunk when the last one is full
+        if (offset == 0) {
+            if (chunk == xs.length) {
+                xs = Arrays.copyOf(xs, chunk * 2);
+                ys = Arrays.copyOf(ys, chunk * 2);
+                times = Arrays.copyOf(times, chunk * 2);
+                pens = Arrays.copyOf(pens, chunk * 2);
             }
+            xs[chunk] = new int[CHUNK_SIZE];
+            ys[chunk] = new int[CHUNK_SIZE];
+            times[chunk] = new int[CHUNK_SIZE];
+            pens[chunk] = new long[CHUNK_SIZE >>> 6];
+        }
+
+        xs[chunk][offset] = x;
+        ys[chunk][offset] = y;
+        times[chunk][offset] = time;
+        if (penDown) {
+            pens[chunk][offset >>> 6] |= 1L << offset;
         }
-        return null;
+
+        if (index != null) {
+            index(length);
+        }
+        length++;
+    }
+
+    // Returns a cursor positioned before the first point
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // [DEBUGGED] Returns the position of the first point in the path that matches the coordinates of Pixel p
+    // Returns -1 if p isn't in the path
+    public int getMatchingPoint(Picture.Pixel p) {
+        ArrayList<Integer> matches = index().get(coordinates(p.getX(), p.getY()));
+        return matches == null ? -1 : matches.get(0);
     }
 
     // [DEBUGGED] Changes Pixel p to Pixel q in a path.
     public void changePath(Picture.Pixel p, Picture.Pixel q) {
-        Point<Picture.Pixel, Boolean> h = getMatchingPoint(p);
-        if (h != null) {
-            h.setKey(q);
+        int position = getMatchingPoint(p);
+        if (position >= 0) {
+            movePoint(position, q.getX(), q.getY());
+        }
+    }
+
+    // Moves the point at position to (x, y)
+    public void movePoint(int position, int x, int y) {
+        if (index != null) {
+            unindex(position);
+        }
+
+        xs[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)] = x;
+        ys[position >>> CHUNK_BITS][position & (CHUNK_SIZE - 1)] = y;
+
+        if (index != null) {
+            index(position);
         }
     }
 
     // [DEBUGGED] Returns length of path in points
     public int length() {
-        return getPath().size();
+        return length;
+    }
+
+    // Key of a pair of coordinates in the index
+    private long coordinates(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    // Returns the coordinate index, building it the first time it's needed. Paths that are only read never
+    // pay for it.
+    private HashMap<Long, ArrayList<Integer>> index() {
+        if (index == null) {
+            index = new HashMap<>();
+            for (int i = 0; i < length; i++) {
+                index(i);
+            }
+        }
+        return index;
+    }
+
+    // Adds a point to the index under its coordinates, keeping each list in path order
+    private void index(int position) {
+        long key = coordinates(getX(position), getY(position));
+        ArrayList<Integer> matches = index.get(key);
+
+        if (matches == null) {
+            matches = new ArrayList<>(1);
+            index.put(key, matches);
+        }
+
+        matches.add(find(matches, position), position);
+    }
+
+    // Removes a point from the index
+    private void unindex(int position) {
+        long key = coordinates(getX(position), getY(position));
+        ArrayList<Integer> matches = index.get(key);
+
+        matches.remove(find(matches, position));
+        if (matches.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    // Binary search of a list of positions in path order. Returns where the position is or would go.
+    private int find(ArrayList<Integer> matches, int position) {
+        int low = 0;
+        int high = matches.size();
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (matches.get(mid) < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
 }
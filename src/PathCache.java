@@ -0,0 +1,202 @@
+/**
+ * Author: Albert Li
+ * Start Date: 10/18/26
+ *
+ * Description: Disk cache of finished paths. A path is filed under a hash of the image bytes, the settings it was
+ * made with and PathGenerator's draw settings, so plotting the same image again skips making the Picture and the
+ * path. The least recently used paths are deleted once the cache grows past its size cap.
+ *
+ * Changelog:
+ *
+ *      v1.0.0 - 10/18/26
+ *          - Paths filed under a SHA-256 of the image and settings, least recently used evicted
+ *          - Paths are written under a temporary name and renamed into place once complete
+ */
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class PathCache {
+
+    //******************************//
+    //***** INSTANCE VARIABLES *****//
+    //******************************//
+
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final String SUFFIX = ".path";
+    private static final String TEMP_SUFFIX = ".tmp"; // paths still being written
+    private static final long STALE_TEMP_MS = 60 * 60 * 1000; // a temporary file this old was left by a run that died
+
+    private File directory;
+    private long maxBytes;
+    private int hits;
+    private int misses;
+
+    //************************//
+    //***** CONSTRUCTORS *****//
+    //************************//
+
+    public PathCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    public PathCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    //***************************//
+    //***** GETTERS/SETTERS *****//
+    //***************************//
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
+
+    // SHA-256 of the image bytes, the settings a path is made with and PathGenerator's draw settings, in hex
+    public static String key(File image, double pixelThresholdPercent, double rgbSensitivityThreshold,
+                             int thickness) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this Java install", e);
+        }
+
+        // Nothing needs to be written anywhere, only hashed
+        OutputStream nowhere = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(nowhere, digest));
+             InputStream in = new FileInputStream(image)) {
+
+            byte[] chunk = new byte[1 << 16];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+
+            out.writeDouble(pixelThresholdPercent);
+            out.writeDouble(rgbSensitivityThreshold);
+            out.writeInt(thickness);
+            for (double setting : PathGenerator.getDrawSettings()) {
+                out.writeDouble(setting);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // Opens the path filed under key, or returns null if there isn't one. A file that can't be read counts as
+    // missing and is removed.
+    public PathFile.Reader get(String key) {
+        File file = new File(directory, key + SUFFIX);
+
+        if (file.isFile()) {
+            try {
+                PathFile.Reader reader = PathFile.open(file);
+                file.setLastModified(System.currentTimeMillis()); // marks it as recently used
+                hits++;
+                return reader;
+            } catch (IOException e) {
+                file.delete();
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    // Files a path made by pg under key, evicts the least recently used paths if the cache is over its cap, and
+    // opens the new file for reading. The path is written under a temporary name and only renamed to key once it is
+    // complete, since a file cut short reads as a valid path with its last points zeroed.
+    public PathFile.Reader put(String key, Path path, PathGenerator pg, double rgbSensitivityThreshold,
+                               double pixelThresholdPercent) throws IOException {
+        File file = new File(directory, key + SUFFIX);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+
+        try {
+            PathFile.write(temp, path, pg, rgbSensitivityThreshold, pixelThresholdPercent);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        evict(file);
+
+        return PathFile.open(file);
+    }
+
+    // Deletes the least recently used paths until the cache fits under maxBytes. Never deletes keep. Temporary
+    // files left by runs that died while writing are deleted too.
+    private void evict(File keep) {
+        File[] temps = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (temps != null) {
+            for (File temp : temps) {
+                if (System.currentTimeMillis() - temp.lastModified() > STALE_TEMP_MS) {
+                    temp.delete();
+                }
+            }
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+
+        // Oldest first. Files touched in the same instant go by name so the order is stable.
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            if (!files[i].equals(keep)) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    total -= length;
+                }
+            }
+        }
+    }
+
+}
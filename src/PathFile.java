@@ -0,0 +1,286 @@
+/**
+ * Author: Albert Li
+ * Start Date: 10/18/26
+ *
+ * Description: Saves a finished path to disk and streams it back, so a picture only has to be turned into a path
+ * once. The file is written and read through memory maps.
+ *
+ * Format (version 2, big-endian):
+ *      Header -
+ *          int magic ("DXMP"), short version
+ *          double ipr, int xPrime, int yPrime
+ *          int thickness, double rgbSensitivityThreshold, double pixelThresholdPercent
+ *          6 doubles, the SpeedProfile the path was made with (SpeedProfile.toArray())
+ *          int number of points
+ *      Points, one after another -
+ *          varint zigzag(x - previous x), varint zigzag(y - previous y), varint (zigzag(time) << 1 | pen down)
+ *          The first point is relative to the origin.
+ *
+ * Changelog:
+ *
+ *      v1.0.0 - 10/18/26
+ *          - Memory-mapped path files, points stored as varint deltas
+ *          - Version 2 of the format saves the SpeedProfile in the header
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class PathFile {
+
+    //******************************//
+    //***** INSTANCE VARIABLES *****//
+    //******************************//
+
+    private static final int MAGIC = 0x44584D50; // "DXMP"
+    private static final short VERSION = 2;
+    private static final int SPEED_SETTINGS = 6; // length of SpeedProfile.toArray()
+    private static final int HEADER_SIZE = 4 + 2 + 8 + 4 + 4 + 4 + 8 + 8 + 8 * SPEED_SETTINGS + 4;
+
+    //******************************//
+    //***** ENCAPSULATED CLASS *****//
+    //******************************//
+
+    // Streams the points of a path file front to back, the same way a Path.Cursor does. Starts before the first
+    // point, so call next() before reading anything.
+    public static class Reader {
+
+        private MappedByteBuffer buffer;
+
+        private double ipr;
+        private int xPrime;
+        private int yPrime;
+        private int thickness;
+        private double rgbSensitivityThreshold;
+        private double pixelThresholdPercent;
+        private SpeedProfile speeds;
+        private int length;
+
+        private int position = -1;
+        private int x;
+        private int y;
+        private boolean penDown;
+        private int time;
+
+        private Reader(MappedByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a path file");
+                }
+                short version = buffer.getShort();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported path file version " + version);
+                }
+
+                this.ipr = buffer.getDouble();
+                this.xPrime = buffer.getInt();
+                this.yPrime = buffer.getInt();
+                this.thickness = buffer.getInt();
+                this.rgbSensitivityThreshold = buffer.getDouble();
+                this.pixelThresholdPercent = buffer.getDouble();
+                double[] speedSettings = new double[SPEED_SETTINGS];
+                for (int i = 0; i < SPEED_SETTINGS; i++) {
+                    speedSettings[i] = buffer.getDouble();
+                }
+                this.speeds = SpeedProfile.fromArray(speedSettings);
+                this.length = buffer.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Path file header is cut off");
+            }
+        }
+
+        // Moves to the next point. Returns false once the path is used up.
+        public boolean next() throws IOException {
+            if (position < length) {
+                position++;
+            }
+            if (position == length) {
+                return false;
+            }
+
+            try {
+                x += unzigzag(readVarint(buffer));
+                y += unzigzag(readVarint(buffer));
+                long timeAndPen = readVarint(buffer);
+                penDown = (timeAndPen & 1) != 0;
+                time = unzigzag(timeAndPen >>> 1);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Path file ends after " + position + " of " + length + " points");
+            }
+            return true;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public boolean isPenDown() {
+            return penDown;
+        }
+
+        public int getTime() {
+            return time;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public double getIpr() {
+            return ipr;
+        }
+
+        public int getxPrime() {
+            return xPrime;
+        }
+
+        public int getyPrime() {
+            return yPrime;
+        }
+
+        public int getThickness() {
+            return thickness;
+        }
+
+        public double getRgbSensitivityThreshold() {
+            return rgbSensitivityThreshold;
+        }
+
+        public double getPixelThresholdPercent() {
+            return pixelThresholdPercent;
+        }
+
+        // Speeds the path was made with, for timing it the same way as when it was new
+        public SpeedProfile getSpeedProfile() {
+            return speeds;
+        }
+    }
+
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
+
+    // Writes a path made by pg to file, along with the settings it was made with. Replaces whatever is there.
+    public static void write(File file, Path path, PathGenerator pg, double rgbSensitivityThreshold,
+                             double pixelThresholdPercent) throws IOException {
+
+        // Sizes the file exactly first. A mapped file can't be shrunk afterwards on every platform.
+        long size = HEADER_SIZE;
+        int lastX = 0;
+        int lastY = 0;
+        Path.Cursor point = path.cursor();
+
+        while (point.next()) {
+            size += varintSize(zigzag(point.getX() - lastX));
+            size += varintSize(zigzag(point.getY() - lastY));
+            size += varintSize(timeAndPen(point));
+            lastX = point.getX();
+            lastY = point.getY();
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.putDouble(pg.getIpr());
+            buffer.putInt(pg.getxPrime());
+            buffer.putInt(pg.getyPrime());
+            buffer.putInt(pg.getThickness());
+            buffer.putDouble(rgbSensitivityThreshold);
+            buffer.putDouble(pixelThresholdPercent);
+            for (double setting : pg.getSpeedProfile().toArray()) {
+                buffer.putDouble(setting);
+            }
+            buffer.putInt(path.length());
+
+            lastX = 0;
+            lastY = 0;
+            point = path.cursor();
+
+            while (point.next()) {
+                writeVarint(buffer, zigzag(point.getX() - lastX));
+                writeVarint(buffer, zigzag(point.getY() - lastY));
+                writeVarint(buffer, timeAndPen(point));
+                lastX = point.getX();
+                lastY = point.getY();
+            }
+
+            buffer.force();
+        }
+    }
+
+    // Opens a path file for streaming. The file is mapped, so nothing is read until the points are.
+    public static Reader open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new Reader(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    // Time and pen state of a point packed into one number, pen in the lowest bit
+    private static long timeAndPen(Path.Cursor point) {
+        return (zigzag(point.getTime()) << 1) | (point.isPenDown() ? 1 : 0);
+    }
+
+    // Maps small negative and positive ints to small unsigned numbers: 0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+    }
+
+    private static int unzigzag(long value) {
+        return (int)(value >>> 1) ^ -(int)(value & 1);
+    }
+
+    // Number of bytes writeVarint() uses for value
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    // Writes value seven bits at a time, low bits first. The high bit of each byte is set if more bytes follow.
+    private static void writeVarint(MappedByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(MappedByteBuffer buffer) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Path file has a malformed number");
+    }
+
+}
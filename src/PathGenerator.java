@@ -91,7 +91,16 @@
  *              - Generate a path based on pixel edge factor
  */
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class PathGenerator {
 
@@ -103,62 +112,910 @@ public class PathGenerator {
     private int cursorX;
     private int cursorY;
     private int thickness; // should be an ODD number
-    private HashSet<Picture.Pixel> traversed;
+    private TraversedMap traversed;
     private HashSet<Picture.Island> islandsLeft;
     private int subIslandPixelThreshold;
-    private Map<Picture.Pixel, Boolean> edgeMap;
-    private HashSet<Picture.Pixel> addedToSubisland;
+    private TraversedMap addedToSubisland;
 
     private static final double DRAW_WINDOW_WIDTH = 12; // inches
     private static final double DRAW_WINDOW_HEIGHT = 9; // inches
+    private static final double MARKER_WIDTH = 0.125; // inches - tip of a fine whiteboard marker
     private static final int timeLowerBound = 55; // ms - if any times are lower than this, multiply all times by factor
     private static final double maxSpeed = 2.5; // inches/second
+    private static final int TILE_ROWS = 64; // rows per tile of the nearest pixel index (tiles are one word wide)
+    private static final long ORDERING_BUDGET_MS = 200; // time allowed for improving the island order
+    private static final double SIMPLIFY_TOLERANCE = 1.0; // pixels a merged pen-down run may stray from the original
+    private static final int PEN_LOWERING_TIME = 50; // ms - this time value is hardcoded for the pen lifting
     private double ipr;
     private int xPrime;
     private int yPrime;
 
+    private double penUpSaved; // inches of pen-up travel between islands saved by orderPlans() (0 if unmeasured)
+    private Budget budget; // time budget of the path being made
+    private SpeedProfile speeds; // how fast the plotter moves, for timing the finished path
+    private long plotTime; // ms - estimated time to plot the last path made
+    private long uniformPlotTime; // ms - the same, if every time were scaled up by one ratio as paths used to be
+
     private int count = 0; // for debugging only
 
-    //************************//
-    //***** CONSTRUCTORS *****//
-    //************************//
+    //******************************//
+    //***** ENCAPSULATED CLASS *****//
+    //******************************//
 
-    public PathGenerator(Picture pic, int thickness, int subIslandPixelThreshold) {
-        this.pic = pic;
-        this.cursorX = 0;
-        this.cursorY = 0;
-        this.thickness = thickness;
-        this.traversed = new HashSet<>();
-        this.addedToSubisland = new HashSet<>();
-        this.subIslandPixelThreshold = subIslandPixelThreshold;
-        islandsLeft = new HashSet<>();
-        edgeMap = new HashMap<>();
-        for (Picture.Island i : pic.getRegions()) {
-            this.islandsLeft.add(i);
+    // Bitset of the Pixels the marker has already covered (or that were removed from consideration). Uses the
+    // same layout as the Picture's mask, so whole rows of the marker footprint can be marked a word at a time,
+    // and keeps a running count of set bits so size() is free.
+    //
+    // An indexed map also keeps the number of unmarked Pixels in each tile of TILE_ROWS rows by one word of
+    // columns, which lets nearestUnmarked() skip empty parts of the picture entirely.
+    //
+    // A map can also cover just a window of the picture, whole words wide, so a planner working on one island
+    // only holds bits for the area around it. Everything outside the window counts as already marked.
+    public class TraversedMap {
+
+        private long[] words;
+        private int count;
+        private int[] tileCounts; // null if the map isn't indexed
+
+        // The window the map covers: rows firstRow to lastRow (inclusive) and rowWords words of columns from
+        // firstWord. Covers the whole picture unless made for a window.
+        private int firstRow;
+        private int lastRow;
+        private int firstWord;
+        private int rowWords;
+
+        // Best candidate of the nearestUnmarked() search in progress
+        private long nearestDist;
+        private int nearestIndex;
+        private int nearestSize;
+
+        public TraversedMap() {
+            this(false);
         }
-        // Adds filtered pixels from the Picture class into the traversed hashset
-        for (Picture.Island i : pic.getNotConsidered()) {
-            for (Picture.Pixel p : i.getIsland()) {
-                traversed.add(p);
+
+        public TraversedMap(boolean indexed) {
+            this.words = new long[pic.getMask().length];
+            this.count = 0;
+            this.firstRow = 0;
+            this.lastRow = pic.getBottomBound() - 1;
+            this.firstWord = 0;
+            this.rowWords = pic.getWordsPerRow();
+            if (indexed) {
+                countTiles();
             }
         }
-        // Stores whether each Pixel is "close to edge" or not in a map
-        for (Picture.Pixel p : this.pic.getAllPixels()) {
-            edgeMap.put(p, inside(p));
+
+        // Map covering only rows fromRow to toRow and columns fromCol to toCol (inclusive, widened to whole words
+        // and clipped to the picture). Never indexed.
+        public TraversedMap(int fromRow, int toRow, int fromCol, int toCol) {
+            this.firstRow = Math.max(fromRow, 0);
+            this.lastRow = Math.max(Math.min(toRow, pic.getBottomBound() - 1), firstRow - 1);
+            this.firstWord = Math.max(fromCol, 0) >> 6;
+            this.rowWords = Math.max(Math.min(toCol >> 6, pic.getWordsPerRow() - 1) - firstWord + 1, 0);
+            this.words = new long[(lastRow - firstRow + 1) * rowWords];
+            this.count = 0;
         }
 
-        if (((double) pic.getPicture()[0].length) / ((double) pic.getPicture().length) < DRAW_WINDOW_WIDTH / DRAW_WINDOW_HEIGHT) {
-            this.ipr = DRAW_WINDOW_HEIGHT / (double) pic.getPicture().length;
-            yPrime = (int)(((DRAW_WINDOW_WIDTH - ipr * pic.getPicture()[0].length) / 2) / ipr);
-            xPrime = (int)(((DRAW_WINDOW_HEIGHT - ipr * pic.getPicture().length) / 2) / ipr);
+        // Whether a coordinate is inside the window the map covers
+        private boolean covers(int x, int y) {
+            int w = y >> 6;
+            return x >= firstRow && x <= lastRow && w >= firstWord && w < firstWord + rowWords;
+        }
 
-        } else {
-            this.ipr = DRAW_WINDOW_WIDTH / (double) pic.getPicture()[0].length;
-            yPrime = (int)(((DRAW_WINDOW_WIDTH - ipr * pic.getPicture()[0].length) / 2) / ipr);
-            xPrime = (int)(((DRAW_WINDOW_HEIGHT - ipr * pic.getPicture().length) / 2) / ipr);
+        // Index into words of a row and word of columns inside the window
+        private int wordAt(int x, int w) {
+            return (x - firstRow) * rowWords + w - firstWord;
+        }
+
+        // Fills tileCounts from the words not yet marked
+        private void countTiles() {
+            long[] mask = pic.getMask();
+            int wordsPerRow = pic.getWordsPerRow();
+            int tileRows = (pic.getBottomBound() + TILE_ROWS - 1) / TILE_ROWS;
+            tileCounts = new int[Math.max(tileRows, 1) * wordsPerRow];
+
+            for (int w = 0; w < words.length; w++) {
+                tileCounts[tileOf(w)] += Long.bitCount(mask[w] & ~words[w]);
+            }
+        }
+
+        private int tileOf(int word) {
+            int wordsPerRow = pic.getWordsPerRow();
+            return (word / wordsPerRow / TILE_ROWS) * wordsPerRow + word % wordsPerRow;
+        }
+
+        // Sets newly marked bits of one word and keeps the counts up to date
+        private void set(int w, long added) {
+            if (added == 0) {
+                return;
+            }
+            int bits = Long.bitCount(added);
+            count += bits;
+            words[w] |= added;
+            if (tileCounts != null) {
+                tileCounts[tileOf(w)] -= bits;
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public boolean contains(int x, int y) {
+            if (!pic.inRange(x, y)) {
+                return false;
+            }
+            if (!covers(x, y)) {
+                return true;
+            }
+            return (words[wordAt(x, y >> 6)] & (1L << y)) != 0;
+        }
+
+        public boolean contains(Picture.Pixel p) {
+            return contains(p.getX(), p.getY());
+        }
+
+        // Marks a single coordinate. Returns false if there is no Pixel there or it was already marked.
+        public boolean add(int x, int y) {
+            if (!pic.isPixel(x, y) || !covers(x, y)) {
+                return false;
+            }
+            int w = wordAt(x, y >> 6);
+            if ((words[w] & (1L << y)) != 0) {
+                return false;
+            }
+            set(w, 1L << y);
+            return true;
+        }
+
+        public boolean add(Picture.Pixel p) {
+            return add(p.getX(), p.getY());
+        }
+
+        // Marks every Pixel in row x between columns yFrom and yTo (inclusive). Columns out of range or outside the
+        // window are ignored.
+        public void addRow(int x, int yFrom, int yTo) {
+            if (x < firstRow || x > lastRow) {
+                return;
+            }
+            if (yFrom < firstWord << 6) {
+                yFrom = firstWord << 6;
+            }
+            if (yTo >= pic.getRightBound()) {
+                yTo = pic.getRightBound() - 1;
+            }
+            if (yTo >= (firstWord + rowWords) << 6) {
+                yTo = ((firstWord + rowWords) << 6) - 1;
+            }
+            if (yFrom > yTo) {
+                return;
+            }
+
+            long[] mask = pic.getMask();
+            int rowStart = x * pic.getWordsPerRow();
+            int fromWord = yFrom >> 6;
+            int toWord = yTo >> 6;
+
+            for (int w = fromWord; w <= toWord; w++) {
+                long range = -1L;
+                if (w == fromWord) {
+                    range &= -1L << yFrom;
+                }
+                if (w == toWord) {
+                    range &= -1L >>> (63 - (yTo & 63));
+                }
+                int local = wordAt(x, w);
+                set(local, range & mask[rowStart + w] & ~words[local]);
+            }
+        }
+
+        // Marks every Pixel set in a bitset with the Picture's layout, limited to rows fromRow to toRow (inclusive)
+        // and to the window
+        public void addAll(long[] bits, int fromRow, int toRow) {
+            long[] mask = pic.getMask();
+            int wordsPerRow = pic.getWordsPerRow();
+
+            for (int x = Math.max(fromRow, firstRow); x <= Math.min(toRow, lastRow); x++) {
+                for (int w = firstWord; w < firstWord + rowWords; w++) {
+                    int local = wordAt(x, w);
+                    set(local, bits[x * wordsPerRow + w] & mask[x * wordsPerRow + w] & ~words[local]);
+                }
+            }
+        }
+
+        public void addAll(long[] bits) {
+            addAll(bits, 0, pic.getBottomBound() - 1);
+        }
+
+        // Same, for the Pixels marked in another map. Only the part of the picture both windows cover is copied.
+        public void addAll(TraversedMap other, int fromRow, int toRow) {
+            long[] mask = pic.getMask();
+            int wordsPerRow = pic.getWordsPerRow();
+            int fromWord = Math.max(firstWord, other.firstWord);
+            int toWord = Math.min(firstWord + rowWords, other.firstWord + other.rowWords);
+
+            for (int x = Math.max(Math.max(fromRow, firstRow), other.firstRow);
+                 x <= Math.min(Math.min(toRow, lastRow), other.lastRow); x++) {
+                for (int w = fromWord; w < toWord; w++) {
+                    int local = wordAt(x, w);
+                    set(local, other.words[other.wordAt(x, w)] & mask[x * wordsPerRow + w] & ~words[local]);
+                }
+            }
+        }
+
+        public void clear() {
+            Arrays.fill(words, 0);
+            count = 0;
+            if (tileCounts != null) {
+                countTiles();
+            }
+        }
+
+        // Returns the unmarked Pixel closest to a coordinate in true Euclidean distance, or null if every Pixel is
+        // marked. Ties go to the Pixel in the larger island. Only works on an indexed map.
+        //
+        // Tiles are searched in square rings around the tile holding the coordinate. Every tile in ring r is at
+        // least r - 1 whole tiles away, so the search stops once that bound passes the best distance found.
+        public Picture.Pixel nearestUnmarked(int x, int y) {
+            if (count == pic.getPixelCount()) {
+                return null;
+            }
+
+            int wordsPerRow = pic.getWordsPerRow();
+            int tileRows = tileCounts.length / wordsPerRow;
+            int tileX = Math.min(Math.max(x, 0) / TILE_ROWS, tileRows - 1);
+            int tileY = Math.min(Math.max(y, 0) >> 6, wordsPerRow - 1);
+            int rings = Math.max(Math.max(tileX, tileRows - 1 - tileX), Math.max(tileY, wordsPerRow - 1 - tileY));
+
+            nearestDist = Long.MAX_VALUE;
+            nearestIndex = -1;
+            nearestSize = 0;
+
+            for (int r = 0; r <= rings; r++) {
+                if (r > 0) {
+                    long bound = Math.min((long) (r - 1) * TILE_ROWS + 1, (long) (r - 1) * 64 + 1);
+                    if (bound * bound > nearestDist) {
+                        break;
+                    }
+                }
+
+                // Top and bottom rows of the ring, then the left and right columns between them
+                for (int ty = tileY - r; ty <= tileY + r; ty++) {
+                    searchTile(tileX - r, ty, x, y);
+                    if (r > 0) {
+                        searchTile(tileX + r, ty, x, y);
+                    }
+                }
+                for (int tx = tileX - r + 1; tx <= tileX + r - 1; tx++) {
+                    searchTile(tx, tileY - r, x, y);
+                    searchTile(tx, tileY + r, x, y);
+                }
+            }
+
+            return nearestIndex < 0 ? null : pic.getPixel(nearestIndex);
+        }
+
+        // Checks every unmarked Pixel of one tile against the best candidate so far
+        private void searchTile(int tx, int ty, int x, int y) {
+            int wordsPerRow = pic.getWordsPerRow();
+            if (tx < 0 || ty < 0 || ty >= wordsPerRow || tx * wordsPerRow >= tileCounts.length) {
+                return;
+            }
+            if (tileCounts[tx * wordsPerRow + ty] == 0) {
+                return;
+            }
+
+            int rowStart = tx * TILE_ROWS;
+            int rowEnd = Math.min(rowStart + TILE_ROWS, pic.getBottomBound());
+            int colStart = ty << 6;
+
+            // Skip the tile if even its closest point is farther than the best candidate
+            long dx = x < rowStart ? rowStart - x : (x >= rowEnd ? x - rowEnd + 1 : 0);
+            long dy = y < colStart ? colStart - y : (y > colStart + 63 ? y - colStart - 63 : 0);
+            if (dx * dx + dy * dy > nearestDist) {
+                return;
+            }
+
+            long[] mask = pic.getMask();
+
+            for (int row = rowStart; row < rowEnd; row++) {
+                int w = row * wordsPerRow + ty;
+                long unmarked = mask[w] & ~words[w];
+
+                while (unmarked != 0) {
+                    int col = colStart + Long.numberOfTrailingZeros(unmarked);
+                    unmarked &= unmarked - 1;
+
+                    long dist = (long) (row - x) * (row - x) + (long) (col - y) * (col - y);
+                    if (dist > nearestDist) {
+                        continue;
+                    }
+
+                    int size = pic.getIslandById(pic.getIslandId(row, col)).size();
+                    if (dist < nearestDist || size > nearestSize) {
+                        nearestDist = dist;
+                        nearestIndex = pic.index(row, col);
+                        nearestSize = size;
+                    }
+                }
+            }
+        }
+    }
+
+    // Plans a range of islands, each on its own child PathGenerator, for makePathParallel(). Islands only read
+    // the shared Picture, so they can be planned on the fork/join pool without locking.
+    private class IslandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Picture.Island[] islands;
+        private IslandPlan[] plans;
+        private int from;
+        private int to;
+
+        public IslandTask(Picture.Island[] islands, IslandPlan[] plans, int from, int to) {
+            this.islands = islands;
+            this.plans = plans;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    plans[i] = planIsland(islands[i]);
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new IslandTask(islands, plans, from, mid), new IslandTask(islands, plans, mid, to));
+        }
+
+    }
+
+    // One island planned on its own, split into strokes: runs of Pixels drawn with the pen down, each reached by
+    // a pen-up jump. Moving between two Pixels takes the same time either way, so a plan can just as well be
+    // drawn backwards (last stroke first, each stroke from its end).
+    private class IslandPlan {
+
+        private Picture.Island island;
+        private ArrayList<ArrayList<Picture.Pixel>> strokes;
+        private boolean reversed;
+
+        public IslandPlan(Picture.Island island) {
+            this.island = island;
+            this.strokes = new ArrayList<>();
+            this.reversed = false;
+        }
+
+        // First Pixel drawn when the plan is drawn forwards
+        public Picture.Pixel getFirst() {
+            return strokes.get(0).get(0);
+        }
+
+        // Last Pixel drawn when the plan is drawn forwards
+        public Picture.Pixel getLast() {
+            ArrayList<Picture.Pixel> stroke = strokes.get(strokes.size() - 1);
+            return stroke.get(stroke.size() - 1);
+        }
+
+        public int strokeCount() {
+            return strokes.size();
+        }
+
+        // Returns the k-th stroke in drawing order
+        public ArrayList<Picture.Pixel> getStroke(int k) {
+            if (!reversed) {
+                return strokes.get(k);
+            }
+            ArrayList<Picture.Pixel> stroke = new ArrayList<>(strokes.get(strokes.size() - 1 - k));
+            Collections.reverse(stroke);
+            return stroke;
+        }
+    }
+
+    // Order in which island plans are stitched together, and which way round each one is drawn. The tour starts
+    // at the cursor and ends back at the origin, where finishPath() returns the pen. Distances are measured along
+    // the longer axis, since that is what a pen-up move takes time for (see travelTime()).
+    private class IslandTour {
+
+        private int n;
+        private int[] firstX;
+        private int[] firstY;
+        private int[] lastX;
+        private int[] lastY;
+        private int startX;
+        private int startY;
+        private int[] tour; // plan index at each position
+        private boolean[] reversed; // indexed by plan
+
+        public IslandTour(IslandPlan[] plans, int startX, int startY) {
+            this.n = plans.length;
+            this.firstX = new int[n];
+            this.firstY = new int[n];
+            this.lastX = new int[n];
+            this.lastY = new int[n];
+            this.startX = startX;
+            this.startY = startY;
+            this.tour = new int[n];
+            this.reversed = new boolean[n];
+
+            for (int i = 0; i < n; i++) {
+                firstX[i] = plans[i].getFirst().getX();
+                firstY[i] = plans[i].getFirst().getY();
+                lastX[i] = plans[i].getLast().getX();
+                lastY[i] = plans[i].getLast().getY();
+            }
+        }
+
+        // Where the pen leaves tour position pos. Position -1 is the starting cursor.
+        private int exitX(int pos) {
+            if (pos < 0) {
+                return startX;
+            }
+            return reversed[tour[pos]] ? firstX[tour[pos]] : lastX[tour[pos]];
+        }
+
+        private int exitY(int pos) {
+            if (pos < 0) {
+                return startY;
+            }
+            return reversed[tour[pos]] ? firstY[tour[pos]] : lastY[tour[pos]];
+        }
+
+        // Where the pen enters tour position pos. Position n is the origin.
+        private int entryX(int pos) {
+            if (pos >= n) {
+                return 0;
+            }
+            return reversed[tour[pos]] ? lastX[tour[pos]] : firstX[tour[pos]];
+        }
+
+        private int entryY(int pos) {
+            if (pos >= n) {
+                return 0;
+            }
+            return reversed[tour[pos]] ? lastY[tour[pos]] : firstY[tour[pos]];
+        }
+
+        private long dist(int x1, int y1, int x2, int y2) {
+            return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
+        }
+
+        // Pen-up distance from tour position a to tour position b
+        private long gap(int a, int b) {
+            return dist(exitX(a), exitY(a), entryX(b), entryY(b));
+        }
+
+        public int[] getTour() {
+            return tour;
+        }
+
+        public boolean isReversed(int plan) {
+            return reversed[plan];
+        }
+
+        // Total pen-up distance of the tour
+        public long length() {
+            long length = 0;
+            for (int pos = 0; pos <= n; pos++) {
+                length += gap(pos - 1, pos);
+            }
+            return length;
+        }
+
+        // Builds the tour by always going to the closest plan. If flip is false every plan is drawn forwards,
+        // otherwise whichever end is closer is entered first. Each step looks at every plan left, so once deadline
+        // passes (or the time budget is spent) the rest are swept in bands instead. Returns false if they were.
+        public boolean nearestNeighbor(boolean flip, long deadline) {
+            boolean[] used = new boolean[n];
+
+            for (int pos = 0; pos < n; pos++) {
+                if (System.nanoTime() - deadline > 0 || budget.isSpent()) {
+                    sweep(pos, used);
+                    return false;
+                }
+
+                int x = exitX(pos - 1);
+                int y = exitY(pos - 1);
+                int closest = -1;
+                boolean closestReversed = false;
+                long closestDist = Long.MAX_VALUE;
+
+                for (int i = 0; i < n; i++) {
+                    if (used[i]) {
+                        continue;
+                    }
+                    long d = dist(x, y, firstX[i], firstY[i]);
+                    if (d < closestDist) {
+                        closest = i;
+                        closestReversed = false;
+                        closestDist = d;
+                    }
+                    d = dist(x, y, lastX[i], lastY[i]);
+                    if (flip && d < closestDist) {
+                        closest = i;
+                        closestReversed = true;
+                        closestDist = d;
+                    }
+                }
+
+                used[closest] = true;
+                tour[pos] = closest;
+                reversed[closest] = closestReversed;
+            }
+            return true;
+        }
+
+        // Fills the tour from position pos with the plans not used yet, drawn forwards. Plans are taken a band of
+        // TILE_ROWS rows at a time, by where they start, going across each band in the opposite direction to the
+        // last one, so the pen sweeps down the picture instead of jumping around it.
+        private void sweep(int pos, boolean[] used) {
+            ArrayList<Integer> left = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (!used[i]) {
+                    left.add(i);
+                }
+            }
+
+            left.sort(Comparator.comparingInt((Integer i) -> firstX[i] / TILE_ROWS)
+                    .thenComparingInt(i -> (firstX[i] / TILE_ROWS) % 2 == 0 ? firstY[i] : -firstY[i]));
+
+            for (int i : left) {
+                tour[pos++] = i;
+                reversed[i] = false;
+            }
+        }
+
+        // One pass of 2-opt. Reversing the run of positions i to j also flips each of its plans, so only the
+        // two gaps at either end of the run change. Returns whether anything improved.
+        public boolean twoOpt(long deadline) {
+            boolean improved = false;
+
+            for (int i = 0; i < n && System.nanoTime() < deadline; i++) {
+                for (int j = i; j < n; j++) {
+                    long delta = dist(exitX(i - 1), exitY(i - 1), exitX(j), exitY(j))
+                            + dist(entryX(i), entryY(i), entryX(j + 1), entryY(j + 1))
+                            - gap(i - 1, i) - gap(j, j + 1);
+
+                    if (delta < 0) {
+                        reverse(i, j);
+                        improved = true;
+                    }
+                }
+            }
+
+            return improved;
+        }
+
+        // One pass of Or-opt. Tries moving each run of up to three plans to every other gap in the tour, drawn
+        // either way round. Returns whether anything improved.
+        public boolean orOpt(long deadline) {
+            boolean improved = false;
+
+            for (int len = 1; len <= 3; len++) {
+                for (int i = 0; i + len <= n && System.nanoTime() < deadline; i++) {
+                    int j = i + len - 1;
+
+                    // Distance saved by taking the run out and closing the gap behind it
+                    long removed = gap(i - 1, i) + gap(j, j + 1)
+                            - dist(exitX(i - 1), exitY(i - 1), entryX(j + 1), entryY(j + 1));
+
+                    int bestK = -2;
+                    boolean bestFlip = false;
+                    long bestDelta = 0;
+
+                    for (int k = -1; k < n; k++) {
+                        if (k >= i - 1 && k <= j) {
+                            continue;
+                        }
+
+                        long kept = dist(exitX(k), exitY(k), entryX(i), entryY(i))
+                                + dist(exitX(j), exitY(j), entryX(k + 1), entryY(k + 1)) - gap(k, k + 1);
+                        long flipped = dist(exitX(k), exitY(k), exitX(j), exitY(j))
+                                + dist(entryX(i), entryY(i), entryX(k + 1), entryY(k + 1)) - gap(k, k + 1);
+
+                        if (kept - removed < bestDelta) {
+                            bestK = k;
+                            bestFlip = false;
+                            bestDelta = kept - removed;
+                        }
+                        if (flipped - removed < bestDelta) {
+                            bestK = k;
+                            bestFlip = true;
+                            bestDelta = flipped - removed;
+                        }
+                    }
+
+                    if (bestK > -2) {
+                        move(i, j, bestK, bestFlip);
+                        improved = true;
+                    }
+                }
+            }
+
+            return improved;
+        }
+
+        // Reverses the run of positions i to j, flipping each plan in it
+        private void reverse(int i, int j) {
+            for (int a = i, b = j; a < b; a++, b--) {
+                int t = tour[a];
+                tour[a] = tour[b];
+                tour[b] = t;
+            }
+            for (int a = i; a <= j; a++) {
+                reversed[tour[a]] = !reversed[tour[a]];
+            }
+        }
+
+        // Moves the run of positions i to j so that it follows position k (which is outside the run)
+        private void move(int i, int j, int k, boolean flip) {
+            if (flip) {
+                reverse(i, j);
+            }
+
+            int len = j - i + 1;
+            int[] run = Arrays.copyOfRange(tour, i, j + 1);
 
+            if (k < i) {
+                System.arraycopy(tour, k + 1, tour, k + 1 + len, i - k - 1);
+                System.arraycopy(run, 0, tour, k + 1, len);
+            } else {
+                System.arraycopy(tour, j + 1, tour, i, k - j);
+                System.arraycopy(run, 0, tour, k - len + 1, len);
+            }
         }
+    }
 
+    // Receives progress reports while a path is being made
+    public interface ProgressListener {
+        void progress(int pixelsCovered, int pixelCount, int islandsLeft);
+    }
+
+    // Time budget for making a path. Once the time is spent, the rest of the path is made with cheaper heuristics:
+    // leftover sub-islands aren't filtered out (so they get drawn instead of skipped) and ties between next Pixels
+    // are only broken by edge factor. The path still covers everything. Cancelling stops the path where it is, and
+    // the path ends by returning to the origin as usual. Progress goes to the listener, if there is one, every
+    // REPORT_INTERVAL_MS and once at the end.
+    public static class Budget {
+
+        private static final long REPORT_INTERVAL_MS = 250;
+
+        private long deadline; // System.nanoTime() when the time is spent
+        private boolean unlimited;
+        private volatile boolean cancelled;
+        private ProgressListener listener;
+        private long lastReport;
+
+        // A budget that never runs out
+        public Budget() {
+            this.unlimited = true;
+        }
+
+        public Budget(long millis, ProgressListener listener) {
+            this.deadline = System.nanoTime() + millis * 1000000L;
+            this.unlimited = false;
+            this.listener = listener;
+            this.lastReport = System.nanoTime();
+        }
+
+        // Can be called from any thread
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isSpent() {
+            return !unlimited && System.nanoTime() - deadline > 0;
+        }
+
+        private void report(int pixelsCovered, int pixelCount, int islandsLeft, boolean last) {
+            long now = System.nanoTime();
+
+            if (listener != null && (last || now - lastReport >= REPORT_INTERVAL_MS * 1000000L)) {
+                listener.progress(pixelsCovered, pixelCount, islandsLeft);
+                lastReport = now;
+            }
+        }
+    }
+
+    // Receives the points of a path from makePath(PointSink) and makePathParallel(PointSink) as they are finished
+    public interface PointSink {
+        void addPoint(int x, int y, boolean penDown, int time);
+    }
+
+    // Finishes a path while it is still being made. Every point still to come sits on a Pixel that is unprocessed
+    // now, so once no unprocessed Pixel is within two marker widths' reach of a point, nothing to come can change
+    // what reduceOverflow() does with it. Such points have their overflow reduced in path order, pen-down runs are
+    // simplified as soon as they end, and the finished points go straight to the sink.
+    //
+    // Every move that goes out is timed on its own by the speed profile, from where the previous point went out.
+    // The times the draft was made with only feed the estimate of how long the path would have taken with every
+    // time multiplied up until the shortest reached timeLowerBound, which is how paths used to be timed.
+    private class PathStream {
+
+        private Path draft; // every point made so far, as it was made
+        private CoverageGrid coverage;
+        private PointSink sink;
+        private int covered; // points of draft added to coverage
+        private int fixed; // points of draft whose overflow has been reduced
+        private int sent; // points of draft handed to the sink (or dropped by simplification)
+        private int lastX; // where the last point sent went
+        private int lastY;
+        private long uniformTotal; // sum of the draft times of the points sent
+        private int uniformShortest; // shortest draft time of the points sent
+
+        public PathStream(PointSink sink) {
+            this.draft = new Path();
+            this.coverage = new CoverageGrid(draft);
+            this.sink = sink;
+            this.uniformShortest = Integer.MAX_VALUE;
+            plotTime = 0;
+            uniformPlotTime = 0;
+        }
+
+        public Path getDraft() {
+            return draft;
+        }
+
+        // Sends whatever is already finished. If finished is true the path is complete and everything goes out.
+        public void flush(boolean finished) {
+            while (covered < draft.length()) {
+                coverage.add(pixelAt(draft, covered));
+                covered++;
+            }
+
+            while (fixed < draft.length() && (finished || settled(draft.getX(fixed), draft.getY(fixed)))) {
+                reduceOverflow(draft, fixed, coverage);
+                fixed++;
+            }
+
+            // A run can only be simplified once the point after it is fixed, or the path is done
+            while (sent < fixed) {
+                int runEnd = runEnd(draft, sent, fixed);
+                if (runEnd == fixed - 1 && !finished) {
+                    return;
+                }
+
+                boolean[] keep = simplifyRun(draft, sent, runEnd);
+                int time = 0;
+
+                for (int i = sent; i <= runEnd; i++) {
+                    time += draft.getTime(i);
+
+                    if (keep[i - sent]) {
+                        send(draft.getX(i), draft.getY(i), draft.isPenDown(i), time);
+                        time = 0;
+                    }
+                }
+
+                sent = runEnd + 1;
+            }
+        }
+
+        // Sends everything left and returns the pen to the origin from curr
+        public void finish(Picture.Pixel curr) {
+            flush(true);
+
+            int time;
+
+            if (curr.getX() > curr.getY()) {
+                time = (int)(1000 * ipr * curr.getX() / maxSpeed);
+            } else {
+                time = (int)(1000 * ipr * curr.getY() / maxSpeed);
+            }
+
+            // Returns to the origin at the end
+            send(0, 0, false, time);
+
+            double ratio = Math.max(1, (double) timeLowerBound / Math.max(1, uniformShortest));
+            uniformPlotTime = (long)(uniformTotal * ratio);
+        }
+
+        // Sends a point. draftTime is how long the move took in the draft.
+        private void send(int x, int y, boolean penDown, int draftTime) {
+            int time = speeds.moveTime(ipr, lastX, lastY, x, y, penDown);
+
+            uniformTotal += draftTime;
+            uniformShortest = Math.min(uniformShortest, draftTime);
+            plotTime += time;
+            lastX = x;
+            lastY = y;
+
+            sink.addPoint(x, y, penDown, time);
+        }
+
+        // Checks that no unprocessed Pixel is close enough to (x, y) for a point on it to cover anything a point
+        // at (x, y) could cover
+        private boolean settled(int x, int y) {
+            int reach = thickness - 1;
+
+            for (int i = x - reach; i <= x + reach; i++) {
+                for (int j = y - reach; j <= y + reach; j++) {
+                    if (pic.isPixel(i, j) && !traversed.contains(i, j)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    // How many path points have each coordinate under their marker, and how many path points sit on each
+    // coordinate. Built once the path is made and kept up to date as reduceOverflow() moves points, so whether a
+    // Pixel is covered by some other point is a lookup instead of a scan of the whole path.
+    public class CoverageGrid {
+
+        private int[] counts; // laid out like the Picture's mask
+        private HashMap<Integer, Integer> centers;
+
+        public CoverageGrid(Path path) {
+            this.counts = new int[pic.getMask().length << 6];
+            this.centers = new HashMap<>();
+
+            for (int i = 0; i < path.length(); i++) {
+                add(pixelAt(path, i));
+            }
+        }
+
+        // Adds a path point at p
+        public void add(Picture.Pixel p) {
+            update(p, 1);
+        }
+
+        // Removes a path point at p
+        public void remove(Picture.Pixel p) {
+            update(p, -1);
+        }
+
+        private void update(Picture.Pixel p, int change) {
+            int borderDist = (thickness - 1) / 2;
+            int boxLeft = p.getY() - borderDist;
+            int boxUp = p.getX() - borderDist;
+
+            for (int i = boxUp; i < boxUp + thickness; i++) {
+                for (int j = boxLeft; j < boxLeft + thickness; j++) {
+                    if (pic.inRange(i, j)) {
+                        counts[pic.index(i, j)] += change;
+                    }
+                }
+            }
+
+            int index = pic.index(p.getX(), p.getY());
+            Integer points = centers.get(index);
+            int left = (points == null ? 0 : points) + change;
+
+            if (left == 0) {
+                centers.remove(index);
+            } else {
+                centers.put(index, left);
+            }
+        }
+
+        // Number of path points with (x, y) under their marker
+        public int coveredBy(int x, int y) {
+            return pic.inRange(x, y) ? counts[pic.index(x, y)] : 0;
+        }
+
+        // Number of path points sitting on the coordinates of p
+        public int pointsAt(Picture.Pixel p) {
+            Integer points = centers.get(pic.index(p.getX(), p.getY()));
+            return points == null ? 0 : points;
+        }
+    }
+
+    //************************//
+    //***** CONSTRUCTORS *****//
+    //************************//
+
+    public PathGenerator(Picture pic, int thickness, int subIslandPixelThreshold) {
+        this(pic, thickness, 0, 0, subIslandPixelThreshold);
     }
 
     // [DEBUGGED]
@@ -168,23 +1025,58 @@ public class PathGenerator {
         this.cursorX = cursorX;
         this.cursorY = cursorY;
         this.thickness = thickness;
-        this.traversed = new HashSet<>();
-        this.addedToSubisland = new HashSet<>();
+        this.traversed = new TraversedMap(true);
+        this.addedToSubisland = new TraversedMap();
         this.subIslandPixelThreshold = subIslandPixelThreshold;
+        this.budget = new Budget();
+        this.speeds = new SpeedProfile();
         islandsLeft = new HashSet<>();
-        edgeMap = new HashMap<>();
         for (Picture.Island i : pic.getRegions()) {
             this.islandsLeft.add(i);
         }
-        // Adds filtered pixels from the Picture class into the traversed hashset
-        for (Picture.Island i : pic.getNotConsidered()) {
-            for (Picture.Pixel p : i.getIsland()) {
-                traversed.add(p);
-            }
+        // Adds filtered pixels from the Picture class into the traversed map in one pass over the bitset
+        traversed.addAll(pic.getDiscardedMask());
+
+        if (((double) pic.getRightBound()) / ((double) pic.getBottomBound()) < DRAW_WINDOW_WIDTH / DRAW_WINDOW_HEIGHT) {
+            this.ipr = DRAW_WINDOW_HEIGHT / (double) pic.getBottomBound();
+            yPrime = (int)(((DRAW_WINDOW_WIDTH - ipr * pic.getRightBound()) / 2) / ipr);
+            xPrime = (int)(((DRAW_WINDOW_HEIGHT - ipr * pic.getBottomBound()) / 2) / ipr);
+
+        } else {
+            this.ipr = DRAW_WINDOW_WIDTH / (double) pic.getRightBound();
+            yPrime = (int)(((DRAW_WINDOW_WIDTH - ipr * pic.getRightBound()) / 2) / ipr);
+            xPrime = (int)(((DRAW_WINDOW_HEIGHT - ipr * pic.getBottomBound()) / 2) / ipr);
+
         }
-        // Stores whether each Pixel is "close to edge" or not in a map
-        for (Picture.Pixel p : this.pic.getAllPixels()) {
-            edgeMap.put(p, inside(p));
+    }
+
+    // Child planner for a single island, used by makePathParallel(). Every other Pixel the marker could reach
+    // while on the island is treated as already traversed, so the island is planned as if it were alone.
+    private PathGenerator(PathGenerator parent, Picture.Island island) {
+        this.pic = parent.pic;
+        this.thickness = parent.thickness;
+        this.subIslandPixelThreshold = parent.subIslandPixelThreshold;
+        this.ipr = parent.ipr;
+        this.xPrime = parent.xPrime;
+        this.yPrime = parent.yPrime;
+        this.budget = parent.budget;
+        this.speeds = parent.speeds;
+        this.islandsLeft = new HashSet<>();
+
+        // The marker never looks further than one step past its reach from a Pixel of the island, so the maps only
+        // need to cover the island's box and that much around it
+        int reach = (thickness - 1) / 2 + 1;
+        this.traversed = new TraversedMap(island.getBoxUp() - reach, island.getBoxDown() + reach,
+                island.getBoxLeft() - reach, island.getBoxRight() + reach);
+        this.addedToSubisland = new TraversedMap(island.getBoxUp() - reach, island.getBoxDown() + reach,
+                island.getBoxLeft() - reach, island.getBoxRight() + reach);
+
+        for (int x = island.getBoxUp() - reach; x <= island.getBoxDown() + reach; x++) {
+            for (int y = island.getBoxLeft() - reach; y <= island.getBoxRight() + reach; y++) {
+                if (pic.isPixel(x, y) && pic.getIslandId(x, y) != island.getId()) {
+                    traversed.add(x, y);
+                }
+            }
         }
     }
 
@@ -216,7 +1108,7 @@ public class PathGenerator {
         this.cursorY = cursorY;
     }
 
-    public HashSet<Picture.Pixel> getTraversed() {
+    public TraversedMap getTraversed() {
         return traversed;
     }
 
@@ -228,179 +1120,137 @@ public class PathGenerator {
         return subIslandPixelThreshold;
     }
 
+    // Builds a map of whether each Pixel is inside (TRUE) or close to the edge (FALSE). This materializes every
+    // Pixel, so only use it for debugging; inside() answers the same question from the Picture's distance transform.
     public Map<Picture.Pixel, Boolean> getEdgeMap() {
+        Map<Picture.Pixel, Boolean> edgeMap = new HashMap<>();
+        for (int i = pic.nextPixel(0); i >= 0; i = pic.nextPixel(i + 1)) {
+            Picture.Pixel p = pic.getPixel(i);
+            edgeMap.put(p, inside(p));
+        }
         return edgeMap;
     }
 
-    public double getIpr() {
-        return ipr;
-    }
-
-    public int getxPrime() {
-        return xPrime;
-    }
-
-    public int getyPrime() {
-        return yPrime;
-    }
-
-    //*******************//
-    //***** METHODS *****//
-    //*******************//
-
-    // [DEBUGGED]
-    // Determines with respect to the picture and marker thickness whether the Pixel
-    // can be classified as "close to the edge" for use in edge vs shading mode and
-    // reduction of overflow. TRUE means the Pixel is INSIDE a region, sufficiently
-    // far from the edge to be considered for shading.
-    public boolean inside(Picture.Pixel p) {
-        int borderDist = (thickness - 1) / 2;
-
-        // The bounding box is defined as what is just out of range of
-        // marker thickness
-        int boxLeft = p.getY() - borderDist - 1;
-        int boxRight = p.getY() + borderDist + 1;
-        int boxUp = p.getX() - borderDist - 1;
-        int boxDown = p.getX() + borderDist + 1;
-
-        int currX = boxUp;
-        int currY = boxLeft;
-
-        // Checks each point in the bounding box
-        for (int i = 0; i < 2 * (boxRight - boxLeft + boxDown - boxUp); i++) {
-
-            // If the coordinate isn't in range or it's a null space, return false
-            if (!pic.inRange(currX, currY) || pic.getPicture()[currX][currY] == null) {
-                return false;
-            }
-
-            if (i <= boxRight - boxLeft - 1) {
-                // Region (1): along top of box: move right
-                currY++;
-
-            } else if (i > boxRight - boxLeft - 1 &&
-                    i <= boxRight - boxLeft + boxDown - boxUp - 1) {
-                // Region (2): along right of box: move down
-                currX++;
-
-            } else if (i > boxRight - boxLeft + boxDown - boxUp - 1 &&
-                    i <= 2 * (boxRight - boxLeft) + boxDown - boxUp - 1) {
-                // Region (3): along bottom of box: move left
-                currY--;
-
-            } else {
-                // Region (4): along left of box: move up
-                currX--;
-
-            }
-        }
-
-        // If every point passes, return true
-        return true;
+    // Inches of pen-up travel between islands that the last makePathParallel() saved by reordering them (0 if it
+    // streamed its points, since those islands are taken greedily)
+    public double getPenUpDistanceSaved() {
+        return penUpSaved;
     }
 
-    // [DEBUGGED]
-    // [GLOBAL] Creates an expanding bounding box until at least one unprocessed Pixel is found.
-    // The Pixel with the shortest distance is returned. This isn't guaranteed to return true
-    // shortest distance because the border is a square, not a circle. But, at low distances, it
-    // is a good approximation. In other words, this works best if your regions are densely packed.
-    public Picture.Pixel getClosestUnprocessedPixelGlobal() {
-
-        // If every Pixel has been traversed, return NULL
-        if (getTraversed().size() == pic.getAllPixels().size()) {
-            return null;
-        }
-
-        // Generating box bounds - will be corrected later in the while loop
-        int boxLeft = cursorY;
-        int boxRight = cursorY;
-        int boxUp = cursorX;
-        int boxDown = cursorX;
+    public double getIpr() {
+        return ipr;
+    }
 
-        // Candidate ArrayList
-        ArrayList<Picture.Pixel> candidates = new ArrayList<>();
+    public int getxPrime() {
+        return xPrime;
+    }
 
-        while (candidates.size() == 0) {
+    public int getyPrime() {
+        return yPrime;
+    }
 
-            // Bounding box increases in size
-            boxLeft--;
-            boxRight++;
-            boxUp--;
-            boxDown++;
+    // The fixed settings that shape every path this class makes, for telling apart paths made with different ones.
+    // Includes the default SpeedProfile, which times every path unless setSpeedProfile() says otherwise.
+    public static double[] getDrawSettings() {
+        double[] speeds = new SpeedProfile().toArray();
+        double[] settings = Arrays.copyOf(new double[]{DRAW_WINDOW_WIDTH, DRAW_WINDOW_HEIGHT, MARKER_WIDTH,
+                timeLowerBound, maxSpeed, SIMPLIFY_TOLERANCE}, 6 + speeds.length);
 
-            // Checks box sizing and fixes it if it's out of bounds
-            if (boxLeft < 0) {
-                boxLeft = 0;
-            }
+        System.arraycopy(speeds, 0, settings, 6, speeds.length);
+        return settings;
+    }
 
-            if (boxUp < 0) {
-                boxUp = 0;
-            }
+    public SpeedProfile getSpeedProfile() {
+        return speeds;
+    }
 
-            if (boxRight >= pic.getRightBound()) {
-                boxRight = pic.getRightBound() - 1;
-            }
+    public void setSpeedProfile(SpeedProfile speeds) {
+        this.speeds = speeds;
+    }
 
-            if (boxDown >= pic.getBottomBound()) {
-                boxDown = pic.getBottomBound() - 1;
-            }
+    // Estimated ms to plot the last path made, with every move timed on its own
+    public long getPlotTime() {
+        return plotTime;
+    }
 
-            // Search starts in top left corner of the box
-            int currY = boxLeft;
-            int currX = boxUp;
+    // Estimated ms to plot the last path made if every time were multiplied by the ratio that brings the shortest
+    // up to timeLowerBound, the way paths used to be timed
+    public long getUniformPlotTime() {
+        return uniformPlotTime;
+    }
 
-            // Checks each point in the bounding box
-            for (int i = 0; i < 2 * (boxRight - boxLeft + boxDown - boxUp); i++) {
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
 
-                // If the coordinate has a pixel and it hasn't been traversed
-                if (pic.getPicture()[currX][currY] != null &&
-                        !traversed.contains(pic.getPicture()[currX][currY])) {
-                    candidates.add(pic.getPicture()[currX][currY]);
-                }
+    // Returns how many image pixels per side can be merged into one without losing anything the plotter could
+    // draw. The marker is thickness pixels wide, so a pixel never needs to be smaller than
+    // MARKER_WIDTH / thickness inches once the image is fit to the draw window.
+    public static int plotterSubsampling(int width, int height, int thickness) {
+        double ipr = Math.min(DRAW_WINDOW_WIDTH / width, DRAW_WINDOW_HEIGHT / height);
+        int subsampling = (int) ((MARKER_WIDTH / thickness) / ipr);
 
-                if (i <= boxRight - boxLeft - 1) {
-                    // Region (1): along top of box: move right
-                    currY++;
+        return Math.max(1, subsampling);
+    }
 
-                } else if (i > boxRight - boxLeft - 1 &&
-                        i <= boxRight - boxLeft + boxDown - boxUp - 1) {
-                    // Region (2): along right of box: move down
-                    currX++;
+    // Decodes an image file straight to plotter resolution. Only the image header is read before picking the
+    // subsampling, so the full resolution image is never decoded.
+    public static Picture pictureAtPlotterResolution(File file, double pixelThresholdPercent,
+                                                     double rgbSensitivityThreshold, int thickness) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("Could not open " + file);
+        }
 
-                } else if (i > boxRight - boxLeft + boxDown - boxUp - 1 &&
-                        i <= 2 * (boxRight - boxLeft) + boxDown - boxUp - 1) {
-                    // Region (3): along bottom of box: move left
-                    currY--;
+        int width;
+        int height;
 
-                } else {
-                    // Region (4): along left of box: move up
-                    currX--;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
 
-                }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
             }
+
+        } finally {
+            in.close();
         }
 
-        // At this point, the candidate array is filled. You now just sort through candidates.
-        Picture.Pixel closest = null;
+        return new Picture(file, pixelThresholdPercent, rgbSensitivityThreshold,
+                plotterSubsampling(width, height, thickness));
+    }
 
-        for (Picture.Pixel p : candidates) {
-            if (closest == null) {
-                closest = p;
-            } else if (closest.sqDist(cursorX, cursorY) > p.sqDist(cursorX, cursorY)) {
-                closest = p;
-            } else if (closest.sqDist(cursorX, cursorY) == p.sqDist(cursorX, cursorY)) {
-                int islandSize1 = closest.getParentIsland().getIsland().size();
-                int islandSize2 = p.getParentIsland().getIsland().size();
+    // Resamples an already decoded image to plotter resolution
+    public static Picture pictureAtPlotterResolution(BufferedImage image, double pixelThresholdPercent,
+                                                     double rgbSensitivityThreshold, int thickness) {
+        return new Picture(image, pixelThresholdPercent, rgbSensitivityThreshold,
+                plotterSubsampling(image.getWidth(), image.getHeight(), thickness));
+    }
 
-                if (islandSize2 > islandSize1) {
-                    closest = p;
-                }
-            }
-        }
+    // Determines with respect to the picture and marker thickness whether the Pixel
+    // can be classified as "close to the edge" for use in edge vs shading mode and
+    // reduction of overflow. TRUE means the Pixel is INSIDE a region, sufficiently
+    // far from the edge to be considered for shading: every space within one step past
+    // the marker's reach is a Pixel. Answered in O(1) from the Picture's distance transform.
+    public boolean inside(Picture.Pixel p) {
+        int borderDist = (thickness - 1) / 2;
 
-        // Should definitely return a pixel
-        return closest;
+        return pic.edgeDistance(p.getX(), p.getY()) > borderDist + 1;
+    }
 
+    // [GLOBAL] Returns the unprocessed Pixel closest to the cursor in true Euclidean distance, tiebreaking by
+    // island size. Searches the tile index kept by the traversed map, so empty areas of the picture are skipped
+    // a whole tile at a time. Returns NULL if every Pixel has been traversed.
+    public Picture.Pixel getClosestUnprocessedPixelGlobal() {
+        return traversed.nearestUnmarked(cursorX, cursorY);
     }
 
     // [NOTE] Pretty slow function overall it seems - need to improve efficiency
@@ -419,10 +1269,17 @@ public class PathGenerator {
             // Filter remaining subislands
             // [FIX] THE SLOW SPEED. NEED TO WRITE SOME NEW METHODS TO IMPROVE ITS SPEED
 
+            // Skipped once the time budget is spent, so the leftovers are drawn instead
             addedToSubisland.clear();
-            for (Picture.Pixel p : i.getIsland()) {
-                if (!traversed.contains(p) && !addedToSubisland.contains(p)) {
-                    filterSubIslands(p);
+            for (int x = i.getBoxUp(); x <= i.getBoxDown() && !budget.isSpent(); x++) {
+                if (budget.isCancelled()) {
+                    return null;
+                }
+
+                for (int y = i.getBoxLeft(); y <= i.getBoxRight(); y++) {
+                    if (i.contains(x, y) && !traversed.contains(x, y) && !addedToSubisland.contains(x, y)) {
+                        filterSubIslands(pic.getPixel(x, y));
+                    }
                 }
             }
 
@@ -449,8 +1306,8 @@ public class PathGenerator {
 
             ArrayList<Picture.Pixel> lowestEFPixels = tiebreakByEF(nextList);
 
-            // If there's only one then return that. Otherwise, tiebreak.
-            if (lowestEFPixels.size() == 1) {
+            // If there's only one then return that. Otherwise, tiebreak (unless the time budget is spent).
+            if (lowestEFPixels.size() == 1 || budget.isSpent()) {
                 return lowestEFPixels.get(0);
             }
 
@@ -487,9 +1344,9 @@ public class PathGenerator {
         for (int i = 0; i < 2 * (boxRight - boxLeft + boxDown - boxUp); i++) {
 
             // If the coordinate is in range, has a pixel, and hasn't been traversed
-            if (pic.inRange(currX, currY) && pic.getPicture()[currX][currY] != null &&
-                    !traversed.contains(pic.getPicture()[currX][currY])) {
-                adjList.add(pic.getPicture()[currX][currY]);
+            if (pic.isPixel(currX, currY) &&
+                    !traversed.contains(currX, currY)) {
+                adjList.add(pic.getPixel(currX, currY));
             }
 
             if (i <= boxRight - boxLeft - 1) {
@@ -523,25 +1380,27 @@ public class PathGenerator {
     // adding Pixels to traversed is functionally the same as removing them from consideration.
     public void filterSubIslands(Picture.Pixel p) {
 
-        Queue<Picture.Pixel> q = new LinkedList<>();
+        Queue<Picture.Pixel> q = new ArrayDeque<>();
 
+        // Pixels are marked as they are queued, so the queue never has to be searched for duplicates
         q.add(p);
+        addedToSubisland.add(p);
 
         while (!q.isEmpty()) {
 
             Picture.Pixel currPixel = q.poll();
-            addedToSubisland.add(currPixel);
 
             for (Picture.Pixel neighbor : currPixel.getAdjList()) {
-                if (!traversed.contains(neighbor) &&
-                        !addedToSubisland.contains(neighbor) && !q.contains(neighbor)) {
+                if (!traversed.contains(neighbor) && addedToSubisland.add(neighbor)) {
                     q.add(neighbor);
                 }
             }
         }
 
+        // A subisland never leaves its island, so only the island's rows need to be merged
         if (addedToSubisland.size() < subIslandPixelThreshold) {
-            traversed.addAll(addedToSubisland);
+            Picture.Island island = p.getParentIsland();
+            traversed.addAll(addedToSubisland, island.getBoxUp(), island.getBoxDown());
         }
     }
 
@@ -603,10 +1462,10 @@ public class PathGenerator {
             for (int i = 0; i < 2 * (boxRight - boxLeft + boxDown - boxUp); i++) {
 
                 // If the coordinate has a pixel and it hasn't been traversed and it's in the island
-                if (pic.getPicture()[currX][currY] != null &&
-                        !traversed.contains(pic.getPicture()[currX][currY]) &&
-                        island.getIsland().contains(pic.getPicture()[currX][currY])) {
-                    candidates.add(pic.getPicture()[currX][currY]);
+                if (pic.isPixel(currX, currY) &&
+                        !traversed.contains(currX, currY) &&
+                        island.contains(currX, currY)) {
+                    candidates.add(pic.getPixel(currX, currY));
                 }
 
                 if (i <= boxRight - boxLeft - 1) {
@@ -658,19 +1517,18 @@ public class PathGenerator {
 
         int size = 0;
         HashSet<Picture.Pixel> subIsland = new HashSet<>();
-        Queue<Picture.Pixel> q = new LinkedList<>();
+        Queue<Picture.Pixel> q = new ArrayDeque<>();
 
         q.add(p);
+        subIsland.add(p);
 
         while (!q.isEmpty()) {
 
             Picture.Pixel currPixel = q.poll();
-            subIsland.add(currPixel);
             size++;
 
             for (Picture.Pixel neighbor : currPixel.getAdjList()) {
-                if (!traversed.contains(neighbor) &&
-                        !subIsland.contains(neighbor) && !q.contains(neighbor)) {
+                if (!traversed.contains(neighbor) && subIsland.add(neighbor)) {
                     q.add(neighbor);
                 }
             }
@@ -682,7 +1540,7 @@ public class PathGenerator {
     public ArrayList<Picture.Pixel> tiebreakByEdge(ArrayList<Picture.Pixel> adjList) {
         ArrayList<Picture.Pixel> edgeList = new ArrayList<>();
         for (Picture.Pixel p : adjList) {
-            if (!edgeMap.containsKey(p)) {
+            if (!inside(p)) {
                 edgeList.add(p);
             }
         }
@@ -766,55 +1624,24 @@ public class PathGenerator {
     }
 
     // Returns an int value that indicates how many unprocessed Pixels would be hypothetically marked
-    // if the marker were immediately moved to that position.
+    // if the marker were immediately moved to that position. The box is counted with the Picture's
+    // summed-area table, so this doesn't depend on the thickness.
     public int hypotheticalMark(Picture.Pixel p) {
-        int hypotheticalMarked = 0;
         int borderDist = (thickness - 1) / 2;
 
         // The bounding box is defined as what lies in the thickness zone of the marker
-        int boxLeft = p.getY() - borderDist;
-        int boxRight = p.getY() + borderDist;
-        int boxUp = p.getX() - borderDist;
-        int boxDown = p.getX() + borderDist;
-
-        // Iterates in the rectangular shape approximated to be the marker thickness and
-        // marks all untraversed pixels as traversed.
-        for (int x = boxUp; x < boxDown + 1; x++) {
-            for (int y = boxLeft; y < boxRight + 1; y++) {
-                if (pic.inRange(x, y) && pic.getPicture()[x][y] != null) {
-                    hypotheticalMarked++;
-                }
-            }
-        }
-
-        return hypotheticalMarked;
+        return pic.countPixels(p.getX() - borderDist, p.getY() - borderDist,
+                p.getX() + borderDist, p.getY() + borderDist);
     }
 
     // Returns an int value that indicates how many unprocessed EDGE Pixels would be hypothetically
     // marked if the marker were immediately moved to that position.
     public int hypotheticalEdgeMark(Picture.Pixel p) {
-        int hypotheticalMarked = 0;
         int borderDist = (thickness - 1) / 2;
 
         // The bounding box is defined as what lies in the thickness zone of the marker
-        int boxLeft = p.getY() - borderDist;
-        int boxRight = p.getY() + borderDist;
-        int boxUp = p.getX() - borderDist;
-        int boxDown = p.getX() + borderDist;
-
-        // Iterates in the rectangular shape approximated to be the marker thickness and
-        // marks all untraversed pixels as traversed.
-        for (int x = boxUp; x < boxDown + 1; x++) {
-            for (int y = boxLeft; y < boxRight + 1; y++) {
-                // If there's a Pixel there that is an edge
-                if (pic.inRange(x, y) && pic.getPicture()[x][y] != null &&
-                        pic.getPicture()[x][y].getEdgeFactor() > 0) {
-                    hypotheticalMarked++;
-                }
-            }
-        }
-
-        return hypotheticalMarked;
+        return pic.countEdgePixels(p.getX() - borderDist, p.getY() - borderDist,
+                p.getX() + borderDist, p.getY() + borderDist);
     }
 
     // Determines whether two Pixels are adjacent based on marker thickness
@@ -855,13 +1682,9 @@ public class PathGenerator {
         int boxDown = x + borderDist;
 
         // Iterates in the rectangular shape approximated to be the marker thickness and
-        // marks all untraversed pixels as traversed.
+        // marks all untraversed pixels as traversed, one row of words at a time.
         for (int xl = boxUp; xl < boxDown + 1; xl++) {
-            for (int yl = boxLeft; yl < boxRight + 1; yl++) {
-                if (pic.inRange(xl, yl) && pic.getPicture()[xl][yl] != null) {
-                    traversed.add(pic.getPicture()[xl][yl]);
-                }
-            }
+            traversed.addRow(xl, boxLeft, boxRight);
         }
     }
 
@@ -965,9 +1788,10 @@ public class PathGenerator {
         return;
     }
 
-    // Reduces the overflow of an already-placed path Pixel
-    public void reduceOverflow(Picture.Pixel p, Path path) {
+    // Reduces the overflow of the path point at position. The coverage grid is updated if the point moves.
+    public void reduceOverflow(Path path, int position, CoverageGrid coverage) {
 
+        Picture.Pixel p = pixelAt(path, position);
         int currOverflow = overflow(p);
         Picture.Pixel newP = pushFactor(p);
 
@@ -991,12 +1815,14 @@ public class PathGenerator {
         firstLeftovers.removeAll(inNewPRange);
 
         // Filters out the pixels that are traversed by other path points
-        HashSet<Picture.Pixel> finalLeftovers = inRangeOfOther(firstLeftovers, p, path);
+        HashSet<Picture.Pixel> finalLeftovers = inRangeOfOther(firstLeftovers, p, coverage);
         int leftovers = finalLeftovers.size();
 
         // simple formula to determine if it's "worth it" to perform the pixel correction
         if (currOverflow - newOverflow >= leftovers) {
-            path.changePath(p, newP);
+            path.movePoint(position, newP.getX(), newP.getY());
+            coverage.remove(p);
+            coverage.add(newP);
         }
     }
 
@@ -1007,17 +1833,8 @@ public class PathGenerator {
         // The bounding box is defined as what lies in the thickness zone of the marker
         int boxLeft = y - borderDist;
         int boxUp = x - borderDist;
-        int overflow = 0;
-
-        for (int i = boxUp; i < boxUp + thickness; i++) {
-            for (int j = boxLeft; j < boxLeft + thickness; j++) {
-                if (pic.inRange(i, j) && pic.getPicture()[i][j] == null) {
-                    overflow++;
-                }
-            }
-        }
 
-        return overflow;
+        return pic.countEmpty(boxUp, boxLeft, boxUp + thickness - 1, boxLeft + thickness - 1);
     }
 
     // Given a Pixel, returns the overflow depending on marker thickness
@@ -1041,45 +1858,45 @@ public class PathGenerator {
         // Empty spaces exert a push on the pixel. This adds up the total influence.
 
         // Top left
-        if (pic.inRange(p.getX() - 1, p.getY() - 1) && pic.getPicture()[p.getX() - 1][p.getY() - 1] == null) {
+        if (pic.inRange(p.getX() - 1, p.getY() - 1) && !pic.isPixel(p.getX() - 1, p.getY() - 1)) {
             xMovement++;
             yMovement++;
         }
 
         // Middle Left
-        if (pic.inRange(p.getX(), p.getY() - 1) && pic.getPicture()[p.getX()][p.getY() - 1] == null) {
+        if (pic.inRange(p.getX(), p.getY() - 1) && !pic.isPixel(p.getX(), p.getY() - 1)) {
             yMovement++;
         }
 
         // Bottom Left
-        if (pic.inRange(p.getX() + 1, p.getY() - 1) && pic.getPicture()[p.getX() + 1][p.getY() - 1] == null) {
+        if (pic.inRange(p.getX() + 1, p.getY() - 1) && !pic.isPixel(p.getX() + 1, p.getY() - 1)) {
             xMovement--;
             yMovement++;
         }
 
         // Top Middle
-        if (pic.inRange(p.getX() - 1, p.getY()) && pic.getPicture()[p.getX() - 1][p.getY()] == null) {
+        if (pic.inRange(p.getX() - 1, p.getY()) && !pic.isPixel(p.getX() - 1, p.getY())) {
             xMovement++;
         }
 
         // Bottom Middle
-        if (pic.inRange(p.getX() + 1, p.getY()) && pic.getPicture()[p.getX() + 1][p.getY()] == null) {
+        if (pic.inRange(p.getX() + 1, p.getY()) && !pic.isPixel(p.getX() + 1, p.getY())) {
             xMovement--;
         }
 
         // Top Right
-        if (pic.inRange(p.getX() - 1, p.getY() + 1) && pic.getPicture()[p.getX() - 1][p.getY() + 1] == null) {
+        if (pic.inRange(p.getX() - 1, p.getY() + 1) && !pic.isPixel(p.getX() - 1, p.getY() + 1)) {
             xMovement++;
             yMovement--;
         }
 
         // Middle Right
-        if (pic.inRange(p.getX(), p.getY() + 1) && pic.getPicture()[p.getX()][p.getY() + 1] == null) {
+        if (pic.inRange(p.getX(), p.getY() + 1) && !pic.isPixel(p.getX(), p.getY() + 1)) {
             yMovement--;
         }
 
         // Bottom Right
-        if (pic.inRange(p.getX() + 1, p.getY() + 1) && pic.getPicture()[p.getX() + 1][p.getY() + 1] == null) {
+        if (pic.inRange(p.getX() + 1, p.getY() + 1) && !pic.isPixel(p.getX() + 1, p.getY() + 1)) {
             xMovement--;
             yMovement--;
         }
@@ -1093,22 +1910,22 @@ public class PathGenerator {
             yMovement = (yMovement / Math.abs(yMovement)) * borderDist;
 
             if (pic.inRange(currX + xMovement, currY + yMovement) &&
-                    pic.getPicture()[currX + xMovement][currY + yMovement] != null) {
-                return pic.getPicture()[currX + xMovement][currY + yMovement];
+                    pic.isPixel(currX + xMovement, currY + yMovement)) {
+                return pic.getPixel(currX + xMovement, currY + yMovement);
             }
         } else if (Math.abs(xMovement) > Math.abs(yMovement)) {
             xMovement = (xMovement / Math.abs(xMovement)) * borderDist;
 
             if (pic.inRange(currX + xMovement, currY) &&
-                    pic.getPicture()[currX + xMovement][currY] != null) {
-                return pic.getPicture()[currX + xMovement][currY];
+                    pic.isPixel(currX + xMovement, currY)) {
+                return pic.getPixel(currX + xMovement, currY);
             }
         } else if (Math.abs(xMovement) < Math.abs(yMovement)) {
             yMovement = (yMovement / Math.abs(yMovement)) * borderDist;
 
             if (pic.inRange(currX, currY + yMovement) &&
-                    pic.getPicture()[currX][currY + yMovement] != null) {
-                return pic.getPicture()[currX][currY + yMovement];
+                    pic.isPixel(currX, currY + yMovement)) {
+                return pic.getPixel(currX, currY + yMovement);
             }
         }
 
@@ -1128,8 +1945,8 @@ public class PathGenerator {
 
         for (int i = boxUp; i < boxUp + thickness; i++) {
             for (int j = boxLeft; j < boxLeft + thickness; j++) {
-                if (pic.inRange(i, j) && pic.getPicture()[i][j] != null) {
-                    h.add(pic.getPicture()[i][j]);
+                if (pic.isPixel(i, j)) {
+                    h.add(pic.getPixel(i, j));
                 }
             }
         }
@@ -1141,20 +1958,18 @@ public class PathGenerator {
     }
 
     // Takes a set of leftover points and checks whether the points are traversed by any path Pixels that are NOT p.
-    // Returns a set of all points which are leftover and are only traversed by p.
-    public HashSet<Picture.Pixel> inRangeOfOther(HashSet<Picture.Pixel> h, Picture.Pixel notP, Path path) {
+    // Returns a set of all points which are leftover and are only traversed by p. Every path point sitting on p
+    // covers the whole area around p, so a leftover is covered by some other point exactly when more points cover
+    // it than sit on p.
+    public HashSet<Picture.Pixel> inRangeOfOther(HashSet<Picture.Pixel> h, Picture.Pixel notP, CoverageGrid coverage) {
         HashSet<Picture.Pixel> leftovers = h;
         HashSet<Picture.Pixel> notLeftovers = new HashSet<>();
+        int atNotP = coverage.pointsAt(notP);
 
         for (Picture.Pixel p : h) {
-            for (Path.Point<Picture.Pixel, Boolean> point : path.getPath()) {
-
-                // If the leftover is in the range of a point other than the provided Pixel
-                if (point.getKey() != notP &&
-                        containedIn(point.getKey().getX(), point.getKey().getY()).contains(p)) {
-                    notLeftovers.add(p);
-                    break;
-                }
+            // If the leftover is in the range of a point other than the provided Pixel
+            if (coverage.coveredBy(p.getX(), p.getY()) > atNotP) {
+                notLeftovers.add(p);
             }
         }
 
@@ -1166,19 +1981,37 @@ public class PathGenerator {
 
     // Makes path in order
     public Path makePath() {
-
         Path path = new Path();
+        makePath(new PathStream(path::addPoint));
+        return path;
+    }
+
+    // Makes path in order, handing each point to sink as soon as it is finished, so the start of the path can be
+    // used while the rest is still being made
+    public void makePath(PointSink sink) {
+        makePath(sink, new Budget());
+    }
+
+    // Makes path in order like makePath(PointSink), within a time budget that can also cancel it
+    public void makePath(PointSink sink, Budget budget) {
+        this.budget = budget;
+        makePath(new PathStream(sink));
+    }
+
+    private void makePath(PathStream stream) {
+
+        Path path = stream.getDraft();
 
         Picture.Pixel curr = getClosestUnprocessedPixelGlobal();
 
         if (curr == null) {
-            return path;
+            return;
         }
 
         // While there are still islands left to consider OR all Pixels have been traversed.
         // The reason we need this second condition is because if the marker is sufficiently thick it
         // can mark across islands and skew the islands traversed calculation.
-        while (!islandsLeft.isEmpty() && traversed.size() != pic.getAllPixels().size()) {
+        while (!islandsLeft.isEmpty() && traversed.size() != pic.getPixelCount() && !budget.isCancelled()) {
 
             // When this loop begins, the pen is hopping to the next island, so don't
             // mark between Pixels (only the endpoints)
@@ -1207,11 +2040,6 @@ public class PathGenerator {
             islandsLeft.remove(island);
             Picture.Pixel next = nextInIsland(island);
 
-            int currX;
-            int currY;
-            int nextX;
-            int nextY;
-
             if (next == null) {
                 islandsLeft.remove(island);
                 Picture.Pixel nextPix = getClosestUnprocessedPixelGlobal();
@@ -1221,93 +2049,529 @@ public class PathGenerator {
                     next = nextPix;
 
                 } else {
-                    return path;
+                    return;
                 }
 
             }
 
             // Loops while there are still applicable Pixels in the island
-            while (next != null) {
+            while (next != null && !budget.isCancelled()) {
+                step(path, curr, next);
+                stream.flush(false);
+                budget.report(traversed.size(), pic.getPixelCount(), islandsLeft.size(), false);
+                curr = next;
+                next = nextInIsland(island);
+            }
+        }
 
-                currX = curr.getX();
-                currY = curr.getY();
-                nextX = next.getX();
-                nextY = next.getY();
+        stream.finish(curr);
+        budget.report(traversed.size(), pic.getPixelCount(), islandsLeft.size(), true);
+    }
 
-                int axd = Math.abs(currX - nextX);
-                int ayd = Math.abs(currY - nextY);
-                int time;
+    // Makes path by planning every island at once on the fork/join pool, then stitching the island paths together
+    // in the order picked by orderPlans(). Islands are planned as if they were alone, so a merge pass replays the
+    // marker over the stitched order. Islands that a thick marker already partly covered from another island are
+    // planned again against what is actually left, just like makePath() would.
+    public Path makePathParallel() {
+        Path path = new Path();
+        makePathParallel(new PathStream(path::addPoint), true);
+        return path;
+    }
+
+    // Makes path in parallel like makePathParallel(), handing each point to sink as soon as it is finished.
+    // Waiting for every island to be planned before ordering them would hold back the first point until the whole
+    // picture is planned, so islands are taken greedily instead (see mergeGreedily()) and points start going out
+    // once the first island is planned.
+    public void makePathParallel(PointSink sink) {
+        makePathParallel(sink, new Budget());
+    }
+
+    // Makes path in parallel like makePathParallel(PointSink), within a time budget that can also cancel it.
+    // Progress is reported from the merge pass.
+    public void makePathParallel(PointSink sink, Budget budget) {
+        this.budget = budget;
+        makePathParallel(new PathStream(sink), false);
+    }
+
+    // Plans the islands and merges them, in the order picked by orderPlans() if ordered, greedily otherwise
+    private void makePathParallel(PathStream stream, boolean ordered) {
+
+        Path path = stream.getDraft();
+
+        Picture.Island[] islands = islandsLeft.toArray(new Picture.Island[0]);
+
+        if (islands.length == 0) {
+            return;
+        }
+
+        islandsLeft.clear();
+
+        Picture.Pixel curr = null;
+
+        if (ordered) {
+            IslandPlan[] plans = new IslandPlan[islands.length];
+            ForkJoinPool.commonPool().invoke(new IslandTask(islands, plans, 0, islands.length));
+            int[] order = orderPlans(plans);
+
+            for (int k = 0; k < order.length && !budget.isCancelled(); k++) {
+                curr = mergePlan(path, curr, plans[order[k]]);
+                stream.flush(false);
+                budget.report(traversed.size(), pic.getPixelCount(), order.length - k - 1, false);
+            }
+        } else {
+            curr = mergeGreedily(path, stream, islands);
+        }
+
+        if (curr == null) {
+            return;
+        }
+
+        stream.finish(curr);
+        budget.report(traversed.size(), pic.getPixelCount(), 0, true);
+    }
+
+    // Picks the order to stitch island plans in, and which way round to draw each one, so the pen travels as little
+    // as possible between islands. Starts from a nearest neighbor tour and improves it with 2-opt and Or-opt until
+    // neither helps or ORDERING_BUDGET_MS runs out. The saving against always going forwards to the closest island
+    // start is kept in penUpSaved. That tour only gets half of ORDERING_BUDGET_MS, and the saving is 0 if it
+    // couldn't be finished in it.
+    private int[] orderPlans(IslandPlan[] plans) {
+        IslandTour tour = new IslandTour(plans, cursorX, cursorY);
+        long start = System.nanoTime();
+        long deadline = start + ORDERING_BUDGET_MS * 1000000L;
+
+        boolean measured = tour.nearestNeighbor(false, start + ORDERING_BUDGET_MS * 500000L);
+        long before = tour.length();
+
+        tour.nearestNeighbor(true, deadline);
+        boolean improved = true;
+
+        while (improved && System.nanoTime() < deadline && !budget.isSpent()) {
+            improved = tour.twoOpt(deadline);
+            improved = tour.orOpt(deadline) || improved;
+        }
+
+        penUpSaved = measured ? (before - tour.length()) * ipr : 0;
+
+        for (int i = 0; i < plans.length; i++) {
+            plans[i].reversed = tour.isReversed(i);
+        }
+        return tour.getTour();
+    }
+
+    // Plans every island on the fork/join pool and merges each one as soon as its plan is done, always going on to
+    // the island whose first Pixel is closest to where the pen stopped. Only the plan of that island has to be
+    // waited for. Plans are handed to the pool in the same greedy order measured between first Pixels, so they
+    // tend to be done before they are needed. Returns the last Pixel of the path.
+    private Picture.Pixel mergeGreedily(Path path, PathStream stream, Picture.Island[] islands) {
+        int n = islands.length;
+        int[] entryX = new int[n];
+        int[] entryY = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            Picture.Pixel entry = entryPixel(islands[i]);
+            entryX[i] = entry.getX();
+            entryY[i] = entry.getY();
+        }
+
+        ArrayList<ForkJoinTask<IslandPlan>> plans = new ArrayList<>(Collections.nCopies(n, null));
+        boolean[] taken = new boolean[n];
+        int x = cursorX;
+        int y = cursorY;
+
+        for (int k = 0; k < n; k++) {
+            int i = closestEntry(entryX, entryY, taken, x, y);
+            Picture.Island island = islands[i];
+            taken[i] = true;
+            plans.set(i, ForkJoinPool.commonPool().submit(() -> planIsland(island)));
+            x = entryX[i];
+            y = entryY[i];
+        }
+
+        Arrays.fill(taken, false);
+        penUpSaved = 0;
+        Picture.Pixel curr = null;
+
+        for (int k = 0; k < n && !budget.isCancelled(); k++) {
+            int i = curr == null ? closestEntry(entryX, entryY, taken, cursorX, cursorY) :
+                    closestEntry(entryX, entryY, taken, curr.getX(), curr.getY());
+            taken[i] = true;
+
+            curr = mergePlan(path, curr, plans.get(i).join());
+            stream.flush(false);
+            budget.report(traversed.size(), pic.getPixelCount(), n - k - 1, false);
+        }
+
+        // Plans that weren't needed after a cancel
+        for (ForkJoinTask<IslandPlan> plan : plans) {
+            plan.cancel(false);
+        }
+        return curr;
+    }
 
-                if (axd > ayd) { // move up/down at max speed
+    // Index of the island not taken yet whose first Pixel is closest to (x, y), measured along the longer axis as
+    // in IslandTour
+    private static int closestEntry(int[] entryX, int[] entryY, boolean[] taken, int x, int y) {
+        int closest = -1;
+        int closestDist = Integer.MAX_VALUE;
+
+        for (int i = 0; i < entryX.length; i++) {
+            int dist = Math.max(Math.abs(entryX[i] - x), Math.abs(entryY[i] - y));
+            if (!taken[i] && dist < closestDist) {
+                closest = i;
+                closestDist = dist;
+            }
+        }
+        return closest;
+    }
+
+    // First Pixel of an island in scan order, where its plan starts. It is always on the edge of the island.
+    private Picture.Pixel entryPixel(Picture.Island island) {
+        for (int y = island.getBoxLeft(); ; y++) {
+            if (island.contains(island.getBoxUp(), y)) {
+                return pic.getPixel(island.getBoxUp(), y);
+            }
+        }
+    }
+
+    // Plans a single island on a child PathGenerator, entering at entryPixel()
+    private IslandPlan planIsland(Picture.Island island) {
+        PathGenerator child = new PathGenerator(this, island);
+        IslandPlan plan = new IslandPlan(island);
+
+        Picture.Pixel curr = entryPixel(island);
+
+        ArrayList<Picture.Pixel> stroke = new ArrayList<>();
+        stroke.add(curr);
+        plan.strokes.add(stroke);
+
+        child.setCursorX(curr.getX());
+        child.setCursorY(curr.getY());
+        child.mark();
+
+        Picture.Pixel next = child.nextInIsland(island);
+        while (next != null && !budget.isCancelled()) {
+
+            // Same moves as step(): pen stays down between adjacent Pixels, otherwise a new stroke starts
+            if (child.pixelsAdjacent(curr, next)) {
+                stroke.add(next);
+                child.mark(curr, next);
+            } else {
+                stroke = new ArrayList<>();
+                stroke.add(next);
+                plan.strokes.add(stroke);
+            }
 
-                    time = (int)(1000 * ipr * axd / maxSpeed);
+            child.setCursorX(next.getX());
+            child.setCursorY(next.getY());
+            child.mark();
+            curr = next;
+            next = child.nextInIsland(island);
+        }
+
+        return plan;
+    }
+
+    // Merge pass for one island plan, appended to path arriving from curr (null at the start of the path).
+    // Returns the last Pixel of the path afterwards.
+    //
+    // If no other island has marked this one yet, each stroke of the plan is replayed on this generator's traversed
+    // map in drawing order. Strokes that mark nothing new are dropped, and so are the points at the end of a stroke
+    // that mark nothing new. Otherwise the plan is thrown away and the island is planned again here.
+    private Picture.Pixel mergePlan(Path path, Picture.Pixel curr, IslandPlan plan) {
+        Picture.Island island = plan.island;
+
+        int left = 0;
+        for (int x = island.getBoxUp(); x <= island.getBoxDown(); x++) {
+            for (int y = island.getBoxLeft(); y <= island.getBoxRight(); y++) {
+                if (island.contains(x, y) && !traversed.contains(x, y)) {
+                    left++;
+                }
+            }
+        }
+
+        if (left == 0) {
+            return curr;
+        } else if (left < island.size()) {
+            return replanIsland(path, curr, island);
+        }
+
+        for (int k = 0; k < plan.strokeCount(); k++) {
+            ArrayList<Picture.Pixel> stroke = plan.getStroke(k);
 
-                } else { // move left/right at max speed
+            // Replays the stroke and finds the last point that still marks something
+            int lastUseful = -1;
 
-                    time = (int)(1000 * ipr * ayd / maxSpeed);
+            for (int i = 0; i < stroke.size(); i++) {
+                int before = traversed.size();
 
+                if (i > 0) {
+                    mark(stroke.get(i - 1), stroke.get(i));
                 }
+                mark(stroke.get(i).getX(), stroke.get(i).getY());
 
-                // If the pixels are next to each other then pen stays down.
-                // Otherwise, lift the pen.
-                if (pixelsAdjacent(curr, next)) {
-                    path.addPoint(next, true, time);
-                    // If pen stays down, mark all intermediate extraneous Pixels
-                    mark(curr, next);
-                } else {
-                    path.addPoint(next, false, time);
-                    path.addPoint(next, true, 50); // this time value is hardcoded for the pen lifting
+                if (traversed.size() > before) {
+                    lastUseful = i;
                 }
+            }
 
-                setCursorX(next.getX());
-                setCursorY(next.getY());
-                mark();
-                curr = next;
-                next = nextInIsland(island);
+            if (lastUseful >= 0) {
+                arrive(path, curr, stroke.get(0));
+
+                for (int i = 1; i <= lastUseful; i++) {
+                    path.addPoint(stroke.get(i), true, travelTime(stroke.get(i - 1), stroke.get(i)));
+                }
+
+                curr = stroke.get(lastUseful);
+                setCursorX(curr.getX());
+                setCursorY(curr.getY());
+            }
+        }
+
+        return curr;
+    }
+
+    // Plans an island that other islands have already partly marked, continuing the path from curr the same way
+    // makePath() would. Returns the last Pixel of the path afterwards.
+    private Picture.Pixel replanIsland(Path path, Picture.Pixel curr, Picture.Island island) {
+        Picture.Pixel start = null;
+        double startDist = Double.MAX_VALUE;
+
+        for (int x = island.getBoxUp(); x <= island.getBoxDown(); x++) {
+            for (int y = island.getBoxLeft(); y <= island.getBoxRight(); y++) {
+                if (island.contains(x, y) && !traversed.contains(x, y)) {
+                    double dist = (x - cursorX) * (double) (x - cursorX) + (y - cursorY) * (double) (y - cursorY);
+                    if (dist < startDist) {
+                        start = pic.getPixel(x, y);
+                        startDist = dist;
+                    }
+                }
             }
         }
 
-        // Reduces the overflow of points in the path
-        for (Path.Point<Picture.Pixel, Boolean> point : path.getPath()) {
-            reduceOverflow(point.getKey(), path);
+        arrive(path, curr, start);
+        setCursorX(start.getX());
+        setCursorY(start.getY());
+        mark();
+
+        curr = start;
+        Picture.Pixel next = nextInIsland(island);
+        while (next != null && !budget.isCancelled()) {
+            step(path, curr, next);
+            curr = next;
+            next = nextInIsland(island);
         }
 
-        int time;
+        return curr;
+    }
 
-        if (curr.getX() > curr.getY()) {
-            time = (int)(1000 * ipr * curr.getX() / maxSpeed);
+    // Adds the move from curr (null at the start of the path) to the start of a stroke, following the same rules
+    // as makePath(): pen down if the Pixels are adjacent, otherwise a jump followed by lowering the pen
+    private void arrive(Path path, Picture.Pixel curr, Picture.Pixel start) {
+        if (curr == null) {
+            path.addPoint(start, false, travelTime(0, 0, start.getX(), start.getY()));
+        } else if (pixelsAdjacent(curr, start)) {
+            path.addPoint(start, true, travelTime(curr, start));
+            mark(curr, start);
         } else {
-            time = (int)(1000 * ipr * curr.getY() / maxSpeed);
+            path.addPoint(start, false, travelTime(curr, start));
+            path.addPoint(start, true, PEN_LOWERING_TIME);
         }
+    }
+
+    // Time for the pen to move between two Pixels at max speed along the longer axis
+    private int travelTime(Picture.Pixel from, Picture.Pixel to) {
+        return travelTime(from.getX(), from.getY(), to.getX(), to.getY());
+    }
+
+    private int travelTime(int fromX, int fromY, int toX, int toY) {
+        int axd = Math.abs(fromX - toX);
+        int ayd = Math.abs(fromY - toY);
 
-        // Returns to the origin at the end
-        path.addPoint(new Picture().new Pixel(0, 0), false, time);
+        if (axd > ayd) { // move up/down at max speed
+            return (int)(1000 * ipr * axd / maxSpeed);
+        } else { // move left/right at max speed
+            return (int)(1000 * ipr * ayd / maxSpeed);
+        }
+    }
 
-        // Multiplying all times by factor to ensure movement
-        int lowestTime = Integer.MAX_VALUE;
+    // Adds the move from curr to next to the path and marks everything the marker covers on the way
+    private void step(Path path, Picture.Pixel curr, Picture.Pixel next) {
+        int time = travelTime(curr, next);
 
-        for (int i = 0; i < path.length(); i++) {
+        // If the pixels are next to each other then pen stays down.
+        // Otherwise, lift the pen.
+        if (pixelsAdjacent(curr, next)) {
+            path.addPoint(next, true, time);
+            // If pen stays down, mark all intermediate extraneous Pixels
+            mark(curr, next);
+        } else {
+            path.addPoint(next, false, time);
+            path.addPoint(next, true, PEN_LOWERING_TIME);
+        }
 
-            int currTime = path.getPath().get(i).getTime();
+        setCursorX(next.getX());
+        setCursorY(next.getY());
+        mark();
+    }
 
-            if (currTime < lowestTime) {
-                lowestTime = currTime;
+    // Douglas-Peucker simplification of the pen-down runs of a path. A run is a stretch of pen-down moves that each
+    // go somewhere new (a move that only lowers the pen in place ends a run, so the pen still goes down before it
+    // moves). Inside a run, points that stray less than SIMPLIFY_TOLERANCE from a straight line between two kept
+    // points are dropped, as long as the straight move still covers every Pixel the original moves covered.
+    // A merged move takes as long as the moves it replaces put together.
+    public Path simplify(Path path) {
+        Path simplified = new Path();
+
+        for (int runStart = 0; runStart < path.length(); ) {
+            int runEnd = runEnd(path, runStart, path.length());
+            boolean[] keep = simplifyRun(path, runStart, runEnd);
+            int time = 0;
+
+            for (int i = runStart; i <= runEnd; i++) {
+                time += path.getTime(i);
+
+                if (keep[i - runStart]) {
+                    simplified.addPoint(path.getX(i), path.getY(i), path.isPenDown(i), time);
+                    time = 0;
+                }
             }
+
+            runStart = runEnd + 1;
         }
 
-        if (lowestTime < timeLowerBound) { // multiply all times if needed
+        return simplified;
+    }
 
-            double timeRatio = (double)timeLowerBound / (double)lowestTime;
+    // Returns the end of the run starting at runStart, looking no further than the point before limit
+    private int runEnd(Path path, int runStart, int limit) {
+        int runEnd = runStart;
 
-            for (int i = 0; i < path.length(); i++) {
+        while (runEnd + 1 < limit && path.isPenDown(runEnd + 1) &&
+                (path.getX(runEnd + 1) != path.getX(runEnd) || path.getY(runEnd + 1) != path.getY(runEnd))) {
+            runEnd++;
+        }
+        return runEnd;
+    }
+
+    // Picks which points of the run from first to last survive simplification, indexed from first. Splits the run
+    // until every piece can be drawn straight. Uses a stack so long runs can't overflow.
+    private boolean[] simplifyRun(Path path, int first, int last) {
+        boolean[] keep = new boolean[last - first + 1];
+        Arrays.fill(keep, true);
+
+        ArrayDeque<int[]> pieces = new ArrayDeque<>();
+        if (last - first > 1) {
+            pieces.push(new int[]{first, last});
+        }
+
+        while (!pieces.isEmpty()) {
+            int[] piece = pieces.pop();
+            int from = piece[0];
+            int to = piece[1];
+
+            Picture.Pixel a = pixelAt(path, from);
+            Picture.Pixel b = pixelAt(path, to);
+            int farthest = from + 1;
+            double farthestDist = -1;
+
+            for (int i = from + 1; i < to; i++) {
+                double dist = distanceToSegment(pixelAt(path, i), a, b);
+                if (dist > farthestDist) {
+                    farthest = i;
+                    farthestDist = dist;
+                }
+            }
+
+            if (farthestDist <= SIMPLIFY_TOLERANCE && straightCovers(path, from, to)) {
+                for (int i = from + 1; i < to; i++) {
+                    keep[i - first] = false;
+                }
+            } else {
+                if (farthest - from > 1) {
+                    pieces.push(new int[]{from, farthest});
+                }
+                if (to - farthest > 1) {
+                    pieces.push(new int[]{farthest, to});
+                }
+            }
+        }
+
+        return keep;
+    }
+
+    // The point at a position of a path as a Pixel of this generator's Picture
+    private Picture.Pixel pixelAt(Path path, int position) {
+        return pic.new Pixel(path.getX(position), path.getY(position));
+    }
+
+    // Euclidean distance from a Pixel to the segment between a and b
+    private double distanceToSegment(Picture.Pixel p, Picture.Pixel a, Picture.Pixel b) {
+        double dx = b.getX() - a.getX();
+        double dy = b.getY() - a.getY();
+        double t = 0;
+
+        if (dx != 0 || dy != 0) {
+            t = ((p.getX() - a.getX()) * dx + (p.getY() - a.getY()) * dy) / (dx * dx + dy * dy);
+            t = Math.max(0, Math.min(1, t));
+        }
+
+        double ex = a.getX() + t * dx - p.getX();
+        double ey = a.getY() + t * dy - p.getY();
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    // Checks whether moving straight from points first to last covers every Pixel that the moves in between cover
+    private boolean straightCovers(Path path, int first, int last) {
+        int borderDist = (thickness - 1) / 2;
+        Picture.Pixel a = pixelAt(path, first);
+        Picture.Pixel b = pixelAt(path, last);
 
-                int currTime = path.getPath().get(i).getTime();
-                path.getPath().get(i).setTime((int)(currTime * timeRatio));
+        for (int i = first + 1; i <= last; i++) {
+            Picture.Pixel p = pixelAt(path, i - 1);
+            Picture.Pixel q = pixelAt(path, i);
 
+            for (int x = Math.min(p.getX(), q.getX()) - borderDist; x <= Math.max(p.getX(), q.getX()) + borderDist; x++) {
+                for (int y = Math.min(p.getY(), q.getY()) - borderDist; y <= Math.max(p.getY(), q.getY()) + borderDist; y++) {
+                    if (pic.isPixel(x, y) && sweepCovers(p, q, x, y) && !sweepCovers(a, b, x, y)) {
+                        return false;
+                    }
+                }
             }
         }
 
-        return path;
+        return true;
+    }
+
+    // Checks whether the marker moved in a straight line from a to b passes over (x, y). The marker covers a
+    // square, so the coordinate is covered if some point of the move is within borderDist of it on both axes.
+    private boolean sweepCovers(Picture.Pixel a, Picture.Pixel b, int x, int y) {
+        int borderDist = (thickness - 1) / 2;
+        double from = 0;
+        double to = 1;
+
+        int[] start = {a.getX(), a.getY()};
+        int[] delta = {b.getX() - a.getX(), b.getY() - a.getY()};
+        int[] target = {x, y};
+
+        // Each axis allows the part of the move where it is within borderDist of the target
+        for (int axis = 0; axis < 2; axis++) {
+            double low = target[axis] - start[axis] - borderDist;
+            double high = target[axis] - start[axis] + borderDist;
+
+            if (delta[axis] == 0) {
+                if (low > 0 || high < 0) {
+                    return false;
+                }
+            } else {
+                double s1 = low / delta[axis];
+                double s2 = high / delta[axis];
+                from = Math.max(from, Math.min(s1, s2));
+                to = Math.min(to, Math.max(s1, s2));
+            }
+        }
+
+        return from <= to;
     }
 
 }
@@ -31,9 +31,18 @@
  *              - Indicate whether an arbitrary coordinate is in range of the picture
  */
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class Picture {
 
@@ -41,15 +50,33 @@ public class Picture {
     //***** INSTANCE VARIABLES *****//
     //******************************//
 
-    private HashSet<Pixel> allPixels = new HashSet<>();
-    private HashSet<Pixel> processed = new HashSet<>();
-    private Pixel closest; // Pixel closest to the origin
-    private Pixel[][] picture;
+    // The thresholded picture is stored as a packed bitset, one bit per pixel, addressed by a linear
+    // index (see index()). Each row starts on a fresh 64-bit word so rows can be scanned a word at a time.
+    // Pixel objects are only created on demand, so large images don't need millions of objects on the heap.
+    private long[] mask;
+    private long[] discardedMask; // same layout as mask, holding only the pixels of discarded islands
+    private int stride; // bits per row, always a multiple of 64
+    private int wordsPerRow;
+    private int pixelCount;
+    // Island id of every pixel, indexed the same way as the bitset. Ids are positive for islands that will be
+    // drawn, negative for islands that were discarded, and 0 where there is no pixel. Null for pictures streamed
+    // from a file, which keep the island of each run of consecutive pixels in a row instead (see labelRuns()).
+    private int[] labels;
+    private int[] rowRuns; // index of the first run of each row, with one extra entry for the end of the last row
+    private int[] runStarts; // column each run starts at
+    private int[] runEnds; // column each run ends at (inclusive), only kept while labeling
+    private int[] runIds; // parent run while labeling, island id afterwards
+    private int runCount;
+    private Island[] islands; // indexed by the absolute value of the island id
+    private volatile int[][] areaTables; // summed-area tables of the pixel and edge pixel planes, built on first use
+    private volatile short[] edgeDistances; // distance transform of the pixel plane, built on first use
     private HashSet<Island> regions = new HashSet<>();
     private ArrayList<Island> notConsidered;
     private int rightBound;
     private int bottomBound;
     private static int count = 0; // TESTING ONLY
+    private static final int BAND_ROWS = 64; // height of the bands labeled in parallel
+    private static final long STREAM_TILE_BYTES = 1 << 24; // decoded tile size when streaming from a file
     private BufferedImage image;
 
     public static Pixel Pixel;
@@ -65,13 +92,12 @@ public class Picture {
     //***** ENCAPSULATED CLASS *****//
     //******************************//
 
+    // Lightweight view of a single marked coordinate. Pixels are created on demand from the bitset, so two
+    // Pixel objects with the same coordinates are considered equal.
     public class Pixel {
 
         private int x;
         private int y;
-        private int edgeFactor;
-        private ArrayList<Pixel> adjacentPixels;
-        private double distance;
 
         public int getX() {
             return x;
@@ -81,91 +107,45 @@ public class Picture {
             return y;
         }
 
+        // Number of empty (or out of range) spaces surrounding the Pixel
         public int getEdgeFactor() {
-            return edgeFactor;
+            return 8 - neighborCount(x, y);
         }
 
         public ArrayList<Pixel> getAdjList() {
-            return adjacentPixels;
-        }
+            ArrayList<Pixel> adjacentPixels = new ArrayList<>(8);
 
-        public double getDistance() {
-            return this.distance;
-        }
+            for (int i = x - 1; i <= x + 1; i++) {
+                for (int j = y - 1; j <= y + 1; j++) {
+                    if ((i != x || j != y) && isPixel(i, j)) {
+                        adjacentPixels.add(new Pixel(i, j));
+                    }
+                }
+            }
 
-        public void setEdgeFactor(int edgeFactor) {
-            this.edgeFactor = edgeFactor;
+            return adjacentPixels;
         }
 
-        public void setDistance(double distance) {
-            this.distance = distance;
+        public double getDistance() {
+            return Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2));
         }
 
         public Pixel(int x, int y) {
             this.x = x;
             this.y = y;
-            this.distance = Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2));
-            this.adjacentPixels = new ArrayList<>();
-        }
-
-        // Returns a list of all pixels adjacent to current Pixel p
-        public void setAdjacentPixels() {
-
-            int x = getX();
-            int y = getY();
-
-            // Top left
-            if (inRange(x - 1, y - 1) && picture[x - 1][y - 1] != null) {
-                adjacentPixels.add(picture[x - 1][y - 1]);
-            }
-
-            // Middle Left
-            if (inRange(x, y - 1) && picture[x][y - 1] != null) {
-                adjacentPixels.add(picture[x][y - 1]);
-            }
-
-            // Bottom Left
-            if (inRange(x + 1, y - 1) && picture[x + 1][y - 1] != null) {
-                adjacentPixels.add(picture[x + 1][y - 1]);
-            }
-
-            // Top Middle
-            if (inRange(x - 1, y) && picture[x - 1][y] != null) {
-                adjacentPixels.add(picture[x - 1][y]);
-            }
-
-            // Bottom Middle
-            if (inRange(x + 1, y) && picture[x + 1][y] != null) {
-                adjacentPixels.add(picture[x + 1][y]);
-            }
-
-            // Top Right
-            if (inRange(x - 1, y + 1) && picture[x - 1][y + 1] != null) {
-                adjacentPixels.add(picture[x - 1][y + 1]);
-            }
-
-            // Middle Right
-            if (inRange(x, y + 1) && picture[x][y + 1] != null) {
-                adjacentPixels.add(picture[x][y + 1]);
-            }
-
-            // Bottom Right
-            if (inRange(x + 1, y + 1) && picture[x + 1][y + 1] != null) {
-                adjacentPixels.add(picture[x + 1][y + 1]);
-            }
         }
 
         // Returns the island that the pixel belongs to.
         // If it returns null, there's either an error OR
         // the pixel is no longer being considered for processing
         public Island getParentIsland() {
-            for (Island island : regions) {
-                if (island.getIsland().contains(this)) {
-                    return island;
-                }
+            int id = getIslandId(x, y);
+
+            if (id <= 0) {
+                return null; // only returns this if the Pixel has been discarded!
             }
 
-            return null; // only returns this if the Pixel has been discarded!
+            return islands[id];
         }
 
         // Returns the squared distance between this Pixel and another
@@ -178,29 +158,60 @@ public class Picture {
             return Math.pow((x - currX), 2) + Math.pow((y - currY), 2);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pixel)) {
+                return false;
+            }
+            Pixel other = (Pixel) o;
+            return x == other.x && y == other.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return index(x, y);
+        }
+
     }
 
     public class Island {
 
-        private HashSet<Pixel> island;
+        // Membership is looked up in the label plane (or the runs of a streamed picture), so the island itself only
+        // keeps its id and statistics
+        private int id;
+        private int size;
         private int boxUp;
         private int boxLeft;
         private int boxRight;
         private int boxDown;
 
-        // initializes new island object
-        public Island() {
-            island = new HashSet<>();
-            boxUp = Integer.MAX_VALUE;
-            boxDown = Integer.MIN_VALUE;
-            boxLeft = Integer.MAX_VALUE;
-            boxRight = Integer.MIN_VALUE;
+        // initializes new island object from the statistics gathered while labeling
+        private Island(int id, int size, int boxUp, int boxDown, int boxLeft, int boxRight) {
+            this.id = id;
+            this.size = size;
+            this.boxUp = boxUp;
+            this.boxDown = boxDown;
+            this.boxLeft = boxLeft;
+            this.boxRight = boxRight;
         }
 
+        // Builds a Pixel set of the island. This materializes every Pixel, so only use it for debugging.
         public HashSet<Pixel> getIsland() {
+            HashSet<Pixel> island = new HashSet<>();
+            for (int x = boxUp; x <= boxDown; x++) {
+                for (int y = boxLeft; y <= boxRight; y++) {
+                    if (contains(x, y)) {
+                        island.add(new Pixel(x, y));
+                    }
+                }
+            }
             return island;
         }
 
+        public int getId() {
+            return id;
+        }
+
         public int getBoxUp() {
             return boxUp;
         }
@@ -218,29 +229,126 @@ public class Picture {
         }
 
         public int size() {
-            return island.size();
+            return size;
+        }
+
+        // Checks whether a coordinate belongs to the island
+        public boolean contains(int x, int y) {
+            return isPixel(x, y) && getIslandId(x, y) == id;
+        }
+
+        public boolean contains(Pixel p) {
+            return contains(p.getX(), p.getY());
         }
 
-        // As pixels are added, the bounding box of the island is recalculated
-        public void addPixel(Pixel p) {
-            island.add(p);
+    }
 
-            if (p.getX() < boxUp) {
-                boxUp = p.getX();
+    // Sizes and bounding boxes of the islands found while labeling, indexed by island id and grown as new
+    // islands show up
+    private static class IslandStats {
+
+        private int count;
+        private int[] sizes = new int[64];
+        private int[] ups = new int[64];
+        private int[] downs = new int[64];
+        private int[] lefts = new int[64];
+        private int[] rights = new int[64];
+
+        // Starts a new island at (x, y) and returns its id
+        private int newIsland(int x, int y) {
+            int id = ++count;
+            if (id == sizes.length) {
+                sizes = Arrays.copyOf(sizes, id * 2);
+                ups = Arrays.copyOf(ups, id * 2);
+                downs = Arrays.copyOf(downs, id * 2);
+                lefts = Arrays.copyOf(lefts, id * 2);
+                rights = Arrays.copyOf(rights, id * 2);
             }
+            ups[id] = x;
+            downs[id] = x;
+            lefts[id] = y;
+            rights[id] = y;
+            return id;
+        }
 
-            if (p.getX() > boxDown) {
-                boxDown = p.getX();
+        // Adds the pixels from (x, from) to (x, to) to an island
+        private void add(int id, int x, int from, int to) {
+            sizes[id] += to - from + 1;
+
+            // Rows are visited in order, so only the bottom of the box can still move vertically
+            downs[id] = x;
+            if (from < lefts[id]) {
+                lefts[id] = from;
+            }
+            if (to > rights[id]) {
+                rights[id] = to;
             }
+        }
+
+    }
+
+    // Thresholds a band of rows of the image into the bitset, rowOffset rows further down (non-zero when the
+    // image is just one tile of the picture). Every row starts on a fresh word of the bitset, so bands never
+    // share words and can be filled in parallel without locking. Returns the number of pixels set.
+    private class ThresholdTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int ROWS_PER_TASK = 32;
+
+        private BufferedImage image;
+        private boolean[] dark;
+        private int rowOffset;
+        private int rowStart;
+        private int rowEnd;
+
+        public ThresholdTask(BufferedImage image, boolean[] dark, int rowOffset, int rowStart, int rowEnd) {
+            this.image = image;
+            this.dark = dark;
+            this.rowOffset = rowOffset;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
 
-            if (p.getY() < boxLeft) {
-                boxLeft = p.getY();
+        @Override
+        protected Integer compute() {
+            if (rowEnd - rowStart <= ROWS_PER_TASK) {
+                return thresholdRows(image, dark, rowOffset, rowStart, rowEnd);
             }
 
-            if (p.getY() > boxRight) {
-                boxRight = p.getY();
+            int mid = (rowStart + rowEnd) >>> 1;
+            ThresholdTask top = new ThresholdTask(image, dark, rowOffset, rowStart, mid);
+            top.fork();
+            int bottom = new ThresholdTask(image, dark, rowOffset, mid, rowEnd).compute();
+            return top.join() + bottom;
+        }
+
+    }
+
+    // First pass of the island labeling for a band of rows. Bands are BAND_ROWS tall and only ever touch
+    // their own rows of the label plane, so they can run in parallel. The seams are merged afterwards.
+    private class LabelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int rowStart;
+        private int rowEnd;
+
+        public LabelTask(int rowStart, int rowEnd) {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int bands = (rowEnd - rowStart + BAND_ROWS - 1) / BAND_ROWS;
+            if (bands <= 1) {
+                labelBand(rowStart, rowEnd);
+                return;
             }
 
+            int mid = rowStart + (bands / 2) * BAND_ROWS;
+            invokeAll(new LabelTask(rowStart, mid), new LabelTask(mid, rowEnd));
         }
 
     }
@@ -257,23 +365,108 @@ public class Picture {
     public Picture(BufferedImage image, double pixelThresholdPercent, double rgbSensitivityThreshold) {
         this.image = image;
         this.rgbSensitivityThreshold = rgbSensitivityThreshold;
-        closest = null;
         imgToArray(image);
 
         notConsidered = new ArrayList<>();
 
         // By default, .01% of the image size is the threshold for discarding an island
         this.pixelThresholdPercent = pixelThresholdPercent;
-        this.pixelThreshold = (int)(picture.length * picture[0].length * (pixelThresholdPercent / 100));
+        this.pixelThreshold = (int)(bottomBound * rightBound * (pixelThresholdPercent / 100));
 
         getPixelGroups();
     }
 
+    // Shrinks the image by the subsampling factor (area averaging) before thresholding it. Used to bring
+    // images down to the resolution the plotter can actually draw.
+    public Picture(BufferedImage image, double pixelThresholdPercent, double rgbSensitivityThreshold,
+                   int subsampling) {
+        this(subsampling > 1 ? areaAverage(image, subsampling) : image, pixelThresholdPercent,
+                rgbSensitivityThreshold);
+    }
+
+    // Streams the image from disk a tile of rows at a time instead of decoding all of it up front. Each tile is
+    // thresholded and its runs of pixels labeled as soon as it is read, joining them to the runs of the row above
+    // it, so only the bitset, the runs and a single decoded tile are ever in memory. getImage() is null for these.
+    // [NOTE] Sequential formats like JPEG and PNG have to be decoded from the top again for every tile, so this
+    // trades decoding time for memory. Only use it for images that don't fit in the heap otherwise.
+    public Picture(File file, double pixelThresholdPercent, double rgbSensitivityThreshold) throws IOException {
+        this(file, pixelThresholdPercent, rgbSensitivityThreshold, 1);
+    }
+
+    // Same as above, but the reader only decodes every subsampling-th pixel in each direction, so the picture
+    // comes out subsampling times smaller per side without the full resolution image ever being decoded.
+    public Picture(File file, double pixelThresholdPercent, double rgbSensitivityThreshold,
+                   int subsampling) throws IOException {
+        this.rgbSensitivityThreshold = rgbSensitivityThreshold;
+        notConsidered = new ArrayList<>();
+
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("Could not open " + file);
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(in);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                setBounds((sourceWidth + subsampling - 1) / subsampling,
+                        (sourceHeight + subsampling - 1) / subsampling);
+                rowRuns = new int[bottomBound + 1];
+                runStarts = new int[1024];
+                runEnds = new int[1024];
+                runIds = new int[1024];
+
+                int tileRows = (int) Math.max(1, Math.min(bottomBound, STREAM_TILE_BYTES / (4L * rightBound)));
+                boolean[] dark = darkTable();
+
+                for (int row = 0; row < bottomBound; row += tileRows) {
+                    int rows = Math.min(tileRows, bottomBound - row);
+
+                    // Tiles start on a multiple of the subsampling so every tile samples the same grid
+                    int sourceRow = row * subsampling;
+                    int sourceRows = Math.min(rows * subsampling, sourceHeight - sourceRow);
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, sourceRow, sourceWidth, sourceRows));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage tile = reader.read(0, param);
+
+                    pixelCount += ForkJoinPool.commonPool().invoke(new ThresholdTask(tile, dark, row, 0, rows));
+                    labelRuns(row, row + rows);
+                }
+
+            } finally {
+                reader.dispose();
+            }
+
+        } finally {
+            in.close();
+        }
+
+        this.pixelThresholdPercent = pixelThresholdPercent;
+        this.pixelThreshold = (int)(bottomBound * rightBound * (pixelThresholdPercent / 100));
+
+        resolveRuns();
+    }
+
     //***************************//
     //***** GETTERS/SETTERS *****//
     //***************************//
 
+    // Builds a full Pixel matrix of the picture. This materializes every Pixel, so only use it for debugging.
     public Pixel[][] getPicture() {
+        Pixel[][] picture = new Pixel[bottomBound][rightBound];
+        for (int i = nextPixel(0); i >= 0; i = nextPixel(i + 1)) {
+            picture[i / stride][i % stride] = new Pixel(i / stride, i % stride);
+        }
         return picture;
     }
 
@@ -293,10 +486,36 @@ public class Picture {
         return notConsidered;
     }
 
+    // Builds a set of every Pixel in the picture. This materializes every Pixel, so only use it for debugging.
     public HashSet<Pixel> getAllPixels() {
+        HashSet<Pixel> allPixels = new HashSet<>();
+        for (int i = nextPixel(0); i >= 0; i = nextPixel(i + 1)) {
+            allPixels.add(new Pixel(i / stride, i % stride));
+        }
         return allPixels;
     }
 
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    public long[] getMask() {
+        return mask;
+    }
+
+    // Bitset of every pixel in a discarded island, laid out exactly like getMask()
+    public long[] getDiscardedMask() {
+        return discardedMask;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
     public int getPixelThreshold() {
         return pixelThreshold;
     }
@@ -317,85 +536,411 @@ public class Picture {
     //***** METHODS *****//
     //*******************//
 
-    // [DEBUGGED] Converts the image to a pixel array to use for pen path construction
+    // [DEBUGGED] Converts the image to a packed pixel bitset to use for pen path construction
     public void imgToArray(BufferedImage image) {
 
-        picture = new Pixel[image.getHeight()][image.getWidth()];
+        setBounds(image.getWidth(), image.getHeight());
+
+        // If the pixel is strong enough, its bit is set. This is the first level of filtration
+        this.pixelCount = ForkJoinPool.commonPool().invoke(new ThresholdTask(image, darkTable(), 0, 0, bottomBound));
+
+    }
+
+    // Scales the image down by the subsampling factor, averaging the colors of each block of pixels
+    private static BufferedImage areaAverage(BufferedImage image, int subsampling) {
+        int width = (image.getWidth() + subsampling - 1) / subsampling;
+        int height = (image.getHeight() + subsampling - 1) / subsampling;
+
+        Image scaled = image.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+        BufferedImage resampled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resampled.createGraphics();
+        g.drawImage(scaled, 0, 0, null);
+        g.dispose();
+
+        return resampled;
+    }
+
+    // Sets the picture size and allocates an empty bitset for it. Pixels are addressed by an int index, which
+    // limits how large a picture can be.
+    private void setBounds(int width, int height) {
+
+        if ((long) height * (((width + 63) >>> 6) << 6) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Picture of " + width + "x" + height + " is too large, subsample it");
+        }
+
         // Pixels can only have values LESS than the bounds (NOT INCLUSIVE)
-        this.rightBound = picture[0].length;
-        this.bottomBound = picture.length;
-
-        // If the pixel is strong enough, a Pixel object is created. This is the first
-        // level of filtration
-        for (int x = 0; x < image.getHeight(); x++) {
-            for (int y = 0; y < image.getWidth(); y++) {
-
-                // RGB axes are switched from matrix axes
-                Color c = new Color(image.getRGB(y, x));
-
-                // [NOTE] IMPORTANT: Threshold values for this are pretty subjective.
-                // Play around with them. I've currently set it at halfway b/t black and white
-                if (c.getBlue() < rgbSensitivityThreshold ||
-                        c.getRed() < rgbSensitivityThreshold ||
-                        c.getGreen() < rgbSensitivityThreshold) {
-                    Pixel p = new Pixel(x, y);
-                    picture[x][y] = p;
-                    allPixels.add(p);
-                } else {
-                    picture[x][y] = null;
+        this.rightBound = width;
+        this.bottomBound = height;
+        this.wordsPerRow = (rightBound + 63) >>> 6;
+        this.stride = wordsPerRow << 6;
+        this.mask = new long[bottomBound * wordsPerRow];
+        this.pixelCount = 0;
+    }
+
+    // [NOTE] IMPORTANT: Threshold values for this are pretty subjective.
+    // Play around with them. I've currently set it at halfway b/t black and white.
+    // A pixel is marked if ANY of its channels is below the threshold, so the test is done once per
+    // channel value here instead of once per pixel.
+    private boolean[] darkTable() {
+        boolean[] dark = new boolean[256];
+        for (int v = 0; v < 256; v++) {
+            dark[v] = v < rgbSensitivityThreshold;
+        }
+        return dark;
+    }
+
+    // Thresholds rows [from, to) of the image into the bitset (rowOffset rows down) and returns how many pixels
+    // were set. The common image types are read straight out of the DataBuffer; anything else goes through
+    // getRGB a row at a time.
+    private int thresholdRows(BufferedImage image, boolean[] dark, int rowOffset, int from, int to) {
+
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+        int width = image.getWidth();
+        int count = 0;
+
+        // Sub-images share their parent's DataBuffer, so the raster's translation has to be accounted for
+        int offsetX = -raster.getSampleModelTranslateX();
+        int offsetY = -raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                ComponentSampleModel sm = (ComponentSampleModel) sampleModel;
+                byte[] data = ((DataBufferByte) buffer).getData();
+                int scanline = sm.getScanlineStride();
+                int pixelStride = sm.getPixelStride();
+                int[] bandOffsets = sm.getBandOffsets();
+
+                for (int x = from; x < to; x++) {
+                    int pos = buffer.getOffset() + (x + offsetY) * scanline + offsetX * pixelStride;
+                    int w = (x + rowOffset) * wordsPerRow;
+                    long word = 0;
+
+                    for (int y = 0; y < width; y++, pos += pixelStride) {
+                        if (dark[data[pos + bandOffsets[0]] & 0xff] ||
+                                dark[data[pos + bandOffsets[1]] & 0xff] ||
+                                dark[data[pos + bandOffsets[2]] & 0xff]) {
+                            word |= 1L << y;
+                        }
+                        if ((y & 63) == 63 || y == width - 1) {
+                            mask[w++] = word;
+                            count += Long.bitCount(word);
+                            word = 0;
+                        }
+                    }
                 }
+                return count;
+            }
 
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) sampleModel;
+                int[] data = ((DataBufferInt) buffer).getData();
+                int scanline = sm.getScanlineStride();
+
+                for (int x = from; x < to; x++) {
+                    int pos = buffer.getOffset() + (x + offsetY) * scanline + offsetX;
+                    int w = (x + rowOffset) * wordsPerRow;
+                    long word = 0;
+
+                    for (int y = 0; y < width; y++, pos++) {
+                        int rgb = data[pos];
+                        if (dark[(rgb >> 16) & 0xff] || dark[(rgb >> 8) & 0xff] || dark[rgb & 0xff]) {
+                            word |= 1L << y;
+                        }
+                        if ((y & 63) == 63 || y == width - 1) {
+                            mask[w++] = word;
+                            count += Long.bitCount(word);
+                            word = 0;
+                        }
+                    }
+                }
+                return count;
+            }
+
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_BYTE_INDEXED: {
+                ComponentSampleModel sm = (ComponentSampleModel) sampleModel;
+                byte[] data = ((DataBufferByte) buffer).getData();
+                int scanline = sm.getScanlineStride();
+                int pixelStride = sm.getPixelStride();
+
+                // One byte per pixel, so the color model only needs to be asked about each of the 256 values once.
+                // This goes through the same conversion getRGB does (gray is NOT simply r = g = b = value).
+                ColorModel cm = image.getColorModel();
+                boolean[] darkLevel = new boolean[256];
+                for (int v = 0; v < 256; v++) {
+                    int rgb = cm.getRGB(new byte[] {(byte) v});
+                    darkLevel[v] = dark[(rgb >> 16) & 0xff] || dark[(rgb >> 8) & 0xff] || dark[rgb & 0xff];
+                }
+
+                for (int x = from; x < to; x++) {
+                    int pos = buffer.getOffset() + (x + offsetY) * scanline + offsetX * pixelStride;
+                    int w = (x + rowOffset) * wordsPerRow;
+                    long word = 0;
+
+                    for (int y = 0; y < width; y++, pos += pixelStride) {
+                        if (darkLevel[data[pos] & 0xff]) {
+                            word |= 1L << y;
+                        }
+                        if ((y & 63) == 63 || y == width - 1) {
+                            mask[w++] = word;
+                            count += Long.bitCount(word);
+                            word = 0;
+                        }
+                    }
+                }
+                return count;
+            }
+
+            default: {
+                int[] row = new int[width];
+
+                for (int x = from; x < to; x++) {
+                    // RGB axes are switched from matrix axes
+                    image.getRGB(0, x, width, 1, row, 0, width);
+                    int w = (x + rowOffset) * wordsPerRow;
+                    long word = 0;
+
+                    for (int y = 0; y < width; y++) {
+                        int rgb = row[y];
+                        if (dark[(rgb >> 16) & 0xff] || dark[(rgb >> 8) & 0xff] || dark[rgb & 0xff]) {
+                            word |= 1L << y;
+                        }
+                        if ((y & 63) == 63 || y == width - 1) {
+                            mask[w++] = word;
+                            count += Long.bitCount(word);
+                            word = 0;
+                        }
+                    }
+                }
+                return count;
             }
         }
+    }
+
+    // [DEBUGGED] Sorts the pixels into distinct, contiguous regions.
+    // Two-pass union-find labeling. The first pass runs on bands of rows in parallel and links every pixel to
+    // its neighbors above and to the left, then the seams between bands are merged. Roots are always the lowest
+    // index of their component, so parents always come before children in scan order and the second pass can
+    // resolve every pixel to an island id in a single sweep, collecting sizes and bounding boxes on the way.
+    public void getPixelGroups() {
 
-        // Iterates through all Pixels in the picture and sets their edge factor
-        for (Pixel p : allPixels) {
-            if (closest == null) {
-                closest = p;
-            } else if (closest.getDistance() > p.getDistance()) {
-                closest = p;
+        labels = new int[bottomBound * stride];
+        labelRows(0, bottomBound);
+        resolveLabels();
+    }
+
+    // First labeling pass over rows [from, to), where from is a multiple of BAND_ROWS. Rows above from must
+    // already be labeled; the seam with them is merged here too.
+    private void labelRows(int from, int to) {
+
+        ForkJoinPool.commonPool().invoke(new LabelTask(from, to));
+
+        // Merges islands that were split by a seam between two bands
+        for (int x = Math.max(from, BAND_ROWS); x < to; x += BAND_ROWS) {
+            int rowEnd = index(x + 1, 0);
+            for (int p = nextPixel(index(x, 0), rowEnd); p >= 0; p = nextPixel(p + 1, rowEnd)) {
+                int y = p - index(x, 0);
+                for (int j = y - 1; j <= y + 1; j++) {
+                    if (isPixel(x - 1, j)) {
+                        union(p, index(x - 1, j));
+                    }
+                }
             }
-            p.setAdjacentPixels();
-            p.setEdgeFactor(8 - p.getAdjList().size());
         }
+    }
+
+    // Second labeling pass. Resolves every pixel to its island id and splits the islands into regions and
+    // notConsidered.
+    private void resolveLabels() {
+
+        IslandStats stats = new IslandStats();
+
+        for (int p = nextPixel(0); p >= 0; p = nextPixel(p + 1)) {
+            int x = p / stride;
+            int y = p % stride;
+
+            // The parent of a pixel comes earlier in scan order, so it has already been given its island id
+            int id = labels[p] == p ? stats.newIsland(x, y) : labels[labels[p]];
 
+            labels[p] = id;
+            stats.add(id, x, y, y);
+        }
+
+        discardedMask = new long[mask.length];
+
+        // Discarded islands get a negative id so the label plane alone tells whether a pixel will be drawn
+        if (buildIslands(stats)) {
+            for (int p = nextPixel(0); p >= 0; p = nextPixel(p + 1)) {
+                if (islands[labels[p]].getId() < 0) {
+                    labels[p] = -labels[p];
+                    discardedMask[p >>> 6] |= 1L << p;
+                }
+            }
+        }
     }
 
-    // [DEBUGGED] Returns a list of sets of Pixels that are distinct, contiguous regions.
-    public void getPixelGroups() {
+    // Filters out islands that are too small to be considered. Uses the pixelThreshold variable. Returns whether
+    // any island was discarded.
+    private boolean buildIslands(IslandStats stats) {
+        islands = new Island[stats.count + 1];
+        boolean anyDiscarded = false;
+
+        for (int id = 1; id <= stats.count; id++) {
+            if (stats.sizes[id] < this.pixelThreshold) {
+                islands[id] = new Island(-id, stats.sizes[id], stats.ups[id], stats.downs[id], stats.lefts[id],
+                        stats.rights[id]);
+                notConsidered.add(islands[id]);
+                anyDiscarded = true;
+            } else {
+                islands[id] = new Island(id, stats.sizes[id], stats.ups[id], stats.downs[id], stats.lefts[id],
+                        stats.rights[id]);
+                regions.add(islands[id]);
+            }
+        }
+        return anyDiscarded;
+    }
+
+    // Labeling of rows [from, to) of a streamed picture, one run of consecutive pixels at a time. Each run starts
+    // as its own root and is joined with the runs of the row above that touch it (diagonals included), so rows
+    // above that one are never looked at again and nothing but the runs is kept between tiles.
+    private void labelRuns(int from, int to) {
+
+        for (int x = from; x < to; x++) {
+            int above = x > 0 ? rowRuns[x - 1] : 0;
+            int aboveEnd = rowRuns[x];
+            int rowStart = index(x, 0);
+            int rowEnd = index(x + 1, 0);
+
+            for (int p = nextPixel(rowStart, rowEnd); p >= 0; p = nextPixel(p + 1, rowEnd)) {
+                if (runCount == runIds.length) {
+                    runStarts = Arrays.copyOf(runStarts, runCount * 2);
+                    runEnds = Arrays.copyOf(runEnds, runCount * 2);
+                    runIds = Arrays.copyOf(runIds, runCount * 2);
+                }
 
-        Queue<Pixel> q = new LinkedList<>();
+                int r = runCount++;
+                runStarts[r] = p - rowStart;
+                p = nextEmpty(p, rowEnd) - 1;
+                runEnds[r] = p - rowStart;
+                runIds[r] = r;
+
+                // Runs of both rows are in column order, so the ones above that end too far left to touch this
+                // run can't touch any later run either
+                while (above < aboveEnd && runEnds[above] < runStarts[r] - 1) {
+                    above++;
+                }
+                for (int a = above; a < aboveEnd && runStarts[a] <= runEnds[r] + 1; a++) {
+                    unionRuns(r, a);
+                }
+            }
 
-        // Iterates through all pixels in the picture. Collects the pixels into "islands".
-        for (Pixel p : allPixels) {
-            if (!processed.contains(p)) {
+            rowRuns[x + 1] = runCount;
+        }
+    }
 
-                q.add(p);
-                Island island = new Island();
+    // Second labeling pass for a streamed picture. Resolves every run to its island id the same way
+    // resolveLabels() does for pixels.
+    private void resolveRuns() {
 
-                while (!q.isEmpty()) {
+        IslandStats stats = new IslandStats();
 
-                    Pixel curr = q.poll();
-                    island.addPixel(curr);
-                    processed.add(curr);
+        for (int x = 0; x < bottomBound; x++) {
+            for (int r = rowRuns[x]; r < rowRuns[x + 1]; r++) {
+                int id = runIds[r] == r ? stats.newIsland(x, runStarts[r]) : runIds[runIds[r]];
 
-                    for (Pixel neighbor : curr.getAdjList()) {
-                        if (!processed.contains(neighbor) && !q.contains(neighbor)) {
-                            q.add(neighbor);
+                runIds[r] = id;
+                stats.add(id, x, runStarts[r], runEnds[r]);
+            }
+        }
+
+        discardedMask = new long[mask.length];
+
+        if (buildIslands(stats)) {
+            for (int x = 0; x < bottomBound; x++) {
+                for (int r = rowRuns[x]; r < rowRuns[x + 1]; r++) {
+                    if (islands[runIds[r]].getId() < 0) {
+                        runIds[r] = -runIds[r];
+                        for (int p = index(x, runStarts[r]); p <= index(x, runEnds[r]); p++) {
+                            discardedMask[p >>> 6] |= 1L << p;
                         }
                     }
                 }
-                regions.add(island);
             }
         }
 
-        // Filters out islands that are too small to be considered. Uses the pixelThreshold variable.
-        for (Island i : regions) {
-            if (i.size() < this.pixelThreshold) {
-                notConsidered.add(i);
+        runStarts = Arrays.copyOf(runStarts, runCount);
+        runIds = Arrays.copyOf(runIds, runCount);
+        runEnds = null;
+    }
+
+    // First labeling pass over rows [from, to). Each pixel starts as its own root and is joined with the
+    // neighbors that have already been visited (left, and the three above it if they are in the band).
+    private void labelBand(int from, int to) {
+        int end = index(to, 0);
+
+        for (int p = nextPixel(index(from, 0), end); p >= 0; p = nextPixel(p + 1, end)) {
+            int x = p / stride;
+            int y = p % stride;
+            labels[p] = p;
+
+            if (isPixel(x, y - 1)) {
+                union(p, p - 1);
             }
+
+            if (x > from) {
+                for (int j = y - 1; j <= y + 1; j++) {
+                    if (isPixel(x - 1, j)) {
+                        union(p, index(x - 1, j));
+                    }
+                }
+            }
+        }
+    }
+
+    // Finds the root of a pixel in the label plane, halving the path on the way
+    private int find(int p) {
+        while (labels[p] != p) {
+            labels[p] = labels[labels[p]];
+            p = labels[p];
+        }
+        return p;
+    }
+
+    // Joins the components of two pixels. The lower index always becomes the root.
+    private void union(int p, int q) {
+        int rootP = find(p);
+        int rootQ = find(q);
+
+        if (rootP < rootQ) {
+            labels[rootQ] = rootP;
+        } else if (rootQ < rootP) {
+            labels[rootP] = rootQ;
+        }
+    }
+
+    // Finds the root of a run, halving the path on the way
+    private int findRun(int r) {
+        while (runIds[r] != r) {
+            runIds[r] = runIds[runIds[r]];
+            r = runIds[r];
+        }
+        return r;
+    }
+
+    // Joins the islands of two runs. The lower index always becomes the root.
+    private void unionRuns(int r, int s) {
+        int rootR = findRun(r);
+        int rootS = findRun(s);
+
+        if (rootR < rootS) {
+            runIds[rootS] = rootR;
+        } else if (rootS < rootR) {
+            runIds[rootR] = rootS;
         }
-        regions.removeAll(notConsidered);
     }
 
     // [DEBUGGED] Checks whether a coordinate is in range of the picture
@@ -410,4 +955,274 @@ public class Picture {
         return true;
     }
 
+    // Linear index of a coordinate into the bitset
+    public int index(int x, int y) {
+        return x * stride + y;
+    }
+
+    // Checks whether there is a marked pixel at a coordinate. Out of range coordinates are never marked.
+    public boolean isPixel(int x, int y) {
+        if (!inRange(x, y)) {
+            return false;
+        }
+        int i = index(x, y);
+        return (mask[i >>> 6] & (1L << i)) != 0;
+    }
+
+    // Returns the Pixel at a coordinate, or null if there isn't one
+    public Pixel getPixel(int x, int y) {
+        return isPixel(x, y) ? new Pixel(x, y) : null;
+    }
+
+    // Returns the Pixel at a linear index, or null if there isn't one
+    public Pixel getPixel(int index) {
+        return getPixel(index / stride, index % stride);
+    }
+
+    // Returns the linear index of the next marked pixel at or after fromIndex, or -1 if there are none left
+    public int nextPixel(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+
+        int w = fromIndex >>> 6;
+        if (w >= mask.length) {
+            return -1;
+        }
+
+        long word = mask[w] & (-1L << fromIndex);
+
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == mask.length) {
+                return -1;
+            }
+            word = mask[w];
+        }
+    }
+
+    // Same, but only looks before limit and returns -1 if there are none there. Used by row scans, so an empty
+    // stretch after the row (all of it, while a streamed picture is still being loaded) isn't searched.
+    public int nextPixel(int fromIndex, int limit) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= limit) {
+            return -1;
+        }
+
+        int w = fromIndex >>> 6;
+        long word = mask[w] & (-1L << fromIndex);
+
+        while (word == 0) {
+            if ((++w << 6) >= limit) {
+                return -1;
+            }
+            word = mask[w];
+        }
+
+        int p = (w << 6) + Long.numberOfTrailingZeros(word);
+        return p < limit ? p : -1;
+    }
+
+    // Returns the linear index of the first empty pixel at or after fromIndex, or limit if there is none before it
+    private int nextEmpty(int fromIndex, int limit) {
+        int w = fromIndex >>> 6;
+        long word = ~mask[w] & (-1L << fromIndex);
+
+        while (word == 0) {
+            if ((++w << 6) >= limit) {
+                return limit;
+            }
+            word = ~mask[w];
+        }
+        return Math.min(limit, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // Returns the island id of a coordinate: positive if its island will be drawn, negative if its island
+    // was discarded, and 0 if there is no pixel there
+    public int getIslandId(int x, int y) {
+        if (labels != null) {
+            return inRange(x, y) ? labels[index(x, y)] : 0;
+        }
+        if (!isPixel(x, y)) {
+            return 0;
+        }
+
+        // Runs are maximal, so the pixel is in the last run of its row starting at or before it
+        int low = rowRuns[x];
+        int high = rowRuns[x + 1] - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (runStarts[mid] <= y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return runIds[low];
+    }
+
+    // Returns the island with the given id (either sign), or null for 0
+    public Island getIslandById(int id) {
+        return islands[Math.abs(id)];
+    }
+
+    // Checks whether a pixel belongs to an island that was filtered out for being too small
+    public boolean isDiscarded(int x, int y) {
+        return getIslandId(x, y) < 0;
+    }
+
+    // Summed-area tables of the pixel plane and the edge pixel plane (pixels with at least one empty neighbor).
+    // Each is (bottomBound + 1) x (rightBound + 1) with a zero first row and column. They are built the first
+    // time a box is counted, so pictures that are never searched this way don't pay for them.
+    private int[][] areaTables() {
+        int[][] tables = areaTables;
+        if (tables != null) {
+            return tables;
+        }
+
+        synchronized (this) {
+            if (areaTables == null) {
+                int width = rightBound + 1;
+                int[] present = new int[(bottomBound + 1) * width];
+                int[] edge = new int[(bottomBound + 1) * width];
+
+                for (int x = 0; x < bottomBound; x++) {
+                    int presentRow = 0;
+                    int edgeRow = 0;
+                    int above = x * width;
+                    int here = above + width;
+
+                    for (int end = index(x + 1, 0), p = nextPixel(index(x, 0), end), y = 0; y < rightBound; y++) {
+                        if (p == index(x, y)) {
+                            presentRow++;
+                            if (neighborCount(x, y) < 8) {
+                                edgeRow++;
+                            }
+                            p = nextPixel(p + 1, end);
+                        }
+                        present[here + y + 1] = present[above + y + 1] + presentRow;
+                        edge[here + y + 1] = edge[above + y + 1] + edgeRow;
+                    }
+                }
+
+                areaTables = new int[][]{present, edge};
+            }
+            return areaTables;
+        }
+    }
+
+    // Sums a summed-area table over the box from (x1, y1) to (x2, y2) inclusive, clipped to the picture
+    private int boxSum(int[] table, int x1, int y1, int x2, int y2) {
+        x1 = Math.max(x1, 0);
+        y1 = Math.max(y1, 0);
+        x2 = Math.min(x2, bottomBound - 1);
+        y2 = Math.min(y2, rightBound - 1);
+
+        if (x1 > x2 || y1 > y2) {
+            return 0;
+        }
+
+        int width = rightBound + 1;
+        return table[(x2 + 1) * width + y2 + 1] - table[x1 * width + y2 + 1]
+                - table[(x2 + 1) * width + y1] + table[x1 * width + y1];
+    }
+
+    // Counts the marked pixels in the box from (x1, y1) to (x2, y2) inclusive in O(1)
+    public int countPixels(int x1, int y1, int x2, int y2) {
+        return boxSum(areaTables()[0], x1, y1, x2, y2);
+    }
+
+    // Counts the in range coordinates without a pixel in the box from (x1, y1) to (x2, y2) inclusive in O(1)
+    public int countEmpty(int x1, int y1, int x2, int y2) {
+        int rows = Math.min(x2, bottomBound - 1) - Math.max(x1, 0) + 1;
+        int cols = Math.min(y2, rightBound - 1) - Math.max(y1, 0) + 1;
+
+        if (rows <= 0 || cols <= 0) {
+            return 0;
+        }
+
+        return rows * cols - countPixels(x1, y1, x2, y2);
+    }
+
+    // Counts the pixels with an edge factor above 0 in the box from (x1, y1) to (x2, y2) inclusive in O(1)
+    public int countEdgePixels(int x1, int y1, int x2, int y2) {
+        return boxSum(areaTables()[1], x1, y1, x2, y2);
+    }
+
+    // Chessboard distance transform of the pixel plane, laid out like the mask. Each pixel holds the distance to
+    // the closest empty or out of range space, where all 8 neighbors count as distance 1. Empty spaces hold 0.
+    // Two passes over the picture: each pass carries distances from the neighbors it has already visited.
+    private short[] edgeDistances() {
+        short[] distances = edgeDistances;
+        if (distances != null) {
+            return distances;
+        }
+
+        synchronized (this) {
+            if (edgeDistances == null) {
+                distances = new short[mask.length << 6];
+
+                // Forward pass: from above and the left
+                for (int x = 0; x < bottomBound; x++) {
+                    for (int y = 0; y < rightBound; y++) {
+                        if (isPixel(x, y)) {
+                            int d = Math.min(Math.min(distanceAt(distances, x - 1, y - 1), distanceAt(distances, x - 1, y)),
+                                    Math.min(distanceAt(distances, x - 1, y + 1), distanceAt(distances, x, y - 1)));
+                            distances[index(x, y)] = (short) Math.min(d + 1, Short.MAX_VALUE);
+                        }
+                    }
+                }
+
+                // Backward pass: from below and the right
+                for (int x = bottomBound - 1; x >= 0; x--) {
+                    for (int y = rightBound - 1; y >= 0; y--) {
+                        if (isPixel(x, y)) {
+                            int d = Math.min(Math.min(distanceAt(distances, x + 1, y + 1), distanceAt(distances, x + 1, y)),
+                                    Math.min(distanceAt(distances, x + 1, y - 1), distanceAt(distances, x, y + 1)));
+                            if (d + 1 < distances[index(x, y)]) {
+                                distances[index(x, y)] = (short) (d + 1);
+                            }
+                        }
+                    }
+                }
+
+                edgeDistances = distances;
+            }
+            return edgeDistances;
+        }
+    }
+
+    // Reads a distance during the transform. Out of range counts as empty space.
+    private int distanceAt(short[] distances, int x, int y) {
+        return inRange(x, y) ? distances[index(x, y)] : 0;
+    }
+
+    // Returns the chessboard distance from a coordinate to the closest empty or out of range space, or 0 if there
+    // is no pixel there. A pixel with distance d has every coordinate within d - 1 steps marked.
+    public int edgeDistance(int x, int y) {
+        if (!inRange(x, y)) {
+            return 0;
+        }
+        return edgeDistances()[index(x, y)];
+    }
+
+    // Counts the marked pixels in the 8 spaces surrounding a coordinate
+    public int neighborCount(int x, int y) {
+        int neighbors = 0;
+
+        for (int i = x - 1; i <= x + 1; i++) {
+            for (int j = y - 1; j <= y + 1; j++) {
+                if ((i != x || j != y) && isPixel(i, j)) {
+                    neighbors++;
+                }
+            }
+        }
+
+        return neighbors;
+    }
+
 }
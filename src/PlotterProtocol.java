@@ -0,0 +1,256 @@
+/**
+ * Author: Albert Li
+ * Start Date: 10/18/26
+ *
+ * Description: Turns the commands of a path into the bytes sent to the Arduino. Commands go out as binary frames,
+ * or as text lines, one at a time, if the text protocol was chosen or the hello frame isn't answered. Binary frames
+ * need the JavaCommunicator.ino of this version. Text lines are the ones Arduino code has always read, so older code
+ * can still plot them: each move is sent as a 'v' line with its time and the speeds it starts and ends at, which
+ * older code skips, and a 'p' line with the time the move takes at a steady speed.
+ *
+ * Text lines:
+ *      q<ipr>\n, c<x'>.<y'>.<time>\n, v<time>.<entry speed>.<exit speed>\n, p<x>.<y>.<u/d>.<steady time>\n, z
+ *
+ * Binary frames:
+ *      byte 0xA5, byte sequence number, byte opcode, byte payload length, payload, CRC-16/CCITT of everything after
+ *      the start byte (big-endian)
+ *      'h' hello - no payload, answered with >b<queue size> by firmware that reads frames
+ *      'q' inch-pixel ratio - float, little-endian
+ *      'c' configuration - varint x', varint y', varint time
+ *      'p' move - varint x, varint y, varint (time << 1 | pen down), varint entry speed, varint exit speed
+ *      'z' done - no payload
+ *      'r' serial rate - varint baud rate. Answered with >s<rate> at the old rate just before the Arduino switches to
+ *          the new one, or with >s0 if it can't run at it.
+ *      't' test pattern - FRAME_MAX bytes of testPattern(), TEST_FRAMES frames numbered from 0 and sent at the new
+ *          rate. Answered with >t<TEST_ECHO> once all of them came through.
+ *      'o' keep rate - no payload, answered with >o every time it is sent, so it can be sent again until the answer
+ *          comes through. The Arduino goes back to BASE_BAUD_RATE if it doesn't get this within two seconds of
+ *          switching.
+ *      Varints are seven bits at a time, low bits first, as in PathFile. Commands are numbered from 0 after the
+ *      hello frame, wrapping at 256. The Arduino queues them and sends a credit (>r) each time it takes one off its
+ *      queue, so up to queue size can be in flight. A frame that is lost or fails its CRC is answered with
+ *      >e<sequence number>, and everything from that number on is sent again.
+ *
+ * Changelog:
+ *
+ *      v1.0.0 - 10/18/26
+ *          - CRC-checked binary frames, text lines when the hello frame isn't answered
+ *          - Credit window, serial rate negotiation and the 'v' line for older Arduino code
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class PlotterProtocol {
+
+    //******************************//
+    //***** INSTANCE VARIABLES *****//
+    //******************************//
+
+    public static final int FRAME_START = 0xA5;
+    public static final int FRAME_MAX = 24; // longest payload the Arduino accepts, must match JavaCommunicator.ino
+
+    // Serial rates, must match JavaCommunicator.ino. Both ends start at BASE_BAUD_RATE, and the faster rates are
+    // tried fastest first.
+    public static final int BASE_BAUD_RATE = 9600;
+    public static final int[] BAUD_RATES = {250000, 115200, 57600};
+    public static final int TEST_FRAMES = 8;
+    public static final String TEST_ECHO = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private boolean binary;
+
+    //******************************//
+    //***** ENCAPSULATED CLASS *****//
+    //******************************//
+
+    // One instruction for the Arduino, kept apart from its encoding so a path can be buffered before the protocol
+    // is known
+    public static class Command {
+
+        private char opcode;
+        private double ipr;
+        private int x; // x' for the configuration block
+        private int y; // y' for the configuration block
+        private boolean penDown;
+        private int time;
+        private int entrySpeed;
+        private int exitSpeed;
+        private int steadyTime; // the move at a steady speed, for Arduino code older than the speeds
+
+        private Command(char opcode) {
+            this.opcode = opcode;
+        }
+
+        public static Command inchPixelRatio(double ipr) {
+            Command command = new Command('q');
+            command.ipr = ipr;
+            return command;
+        }
+
+        public static Command configuration(int xPrime, int yPrime, int time) {
+            Command command = new Command('c');
+            command.x = xPrime;
+            command.y = yPrime;
+            command.time = time;
+            return command;
+        }
+
+        public static Command move(int x, int y, boolean penDown, int time, int entrySpeed, int exitSpeed,
+                                   int steadyTime) {
+            Command command = new Command('p');
+            command.x = x;
+            command.y = y;
+            command.penDown = penDown;
+            command.time = time;
+            command.entrySpeed = entrySpeed;
+            command.exitSpeed = exitSpeed;
+            command.steadyTime = steadyTime;
+            return command;
+        }
+
+        public static Command done() {
+            return new Command('z');
+        }
+    }
+
+    //************************//
+    //***** CONSTRUCTORS *****//
+    //************************//
+
+    public PlotterProtocol(boolean binary) {
+        this.binary = binary;
+    }
+
+    //***************************//
+    //***** GETTERS/SETTERS *****//
+    //***************************//
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
+
+    // Asks the Arduino to switch to binary frames until the path is done
+    public static byte[] hello() {
+        return frame(0, 'h', new ByteArrayOutputStream());
+    }
+
+    // Asks the Arduino to switch to baudRate. Older Arduino code reads the frame as text, so it is numbered 1, which
+    // keeps every byte of it for each of BAUD_RATES clear of the text commands.
+    public static byte[] baudRate(int baudRate) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, baudRate);
+        return frame(1, 'r', payload);
+    }
+
+    // The sequence-th frame of the test pattern. No byte comes twice across the TEST_FRAMES frames, and the first is
+    // the start byte, so a frame that lost a byte can't pass.
+    public static byte[] testPattern(int sequence) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAME_MAX; i++) {
+            payload.write((sequence * FRAME_MAX + i) * 11 + FRAME_START);
+        }
+        return frame(sequence, 't', payload);
+    }
+
+    // Tells the Arduino the test pattern came through both ways, so the new rate is kept
+    public static byte[] keepBaudRate() {
+        return frame(0, 'o', new ByteArrayOutputStream());
+    }
+
+    // Encodes command, the sequence-th sent after the hello frame. Text lines aren't numbered.
+    public byte[] encode(Command command, int sequence) {
+        return binary ? encodeBinary(command, sequence) : encodeText(command).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String encodeText(Command command) {
+        switch (command.opcode) {
+            case 'q':
+                return "q" + command.ipr + "\n";
+            case 'c':
+                return "c" + command.x + "." + command.y + "." + command.time + "\n";
+            case 'p': // the 'v' line has no command letters in it, so older Arduino code skips it
+                return "v" + command.time + "." + command.entrySpeed + "." + command.exitSpeed + "\n" +
+                        "p" + command.x + "." + command.y + "." + (command.penDown ? "d" : "u") + "." +
+                        command.steadyTime + "\n";
+            default:
+                return String.valueOf(command.opcode);
+        }
+    }
+
+    private static byte[] encodeBinary(Command command, int sequence) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        switch (command.opcode) {
+            case 'q':
+                int bits = Float.floatToIntBits((float) command.ipr);
+                for (int i = 0; i < 4; i++) {
+                    payload.write(bits >>> (8 * i));
+                }
+                break;
+            case 'c':
+                writeVarint(payload, command.x);
+                writeVarint(payload, command.y);
+                writeVarint(payload, command.time);
+                break;
+            case 'p':
+                writeVarint(payload, command.x);
+                writeVarint(payload, command.y);
+                writeVarint(payload, ((long) command.time << 1) | (command.penDown ? 1 : 0));
+                writeVarint(payload, command.entrySpeed);
+                writeVarint(payload, command.exitSpeed);
+                break;
+        }
+
+        return frame(sequence, command.opcode, payload);
+    }
+
+    private static byte[] frame(int sequence, char opcode, ByteArrayOutputStream payload) {
+        if (payload.size() > FRAME_MAX) {
+            throw new IllegalArgumentException("Payload of '" + opcode + "' is " + payload.size() + " bytes, over " +
+                    FRAME_MAX);
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(FRAME_START);
+        frame.write(sequence);
+        frame.write(opcode);
+        frame.write(payload.size());
+        frame.write(payload.toByteArray(), 0, payload.size());
+
+        byte[] bytes = frame.toByteArray();
+        int crc = crc16(bytes, 1, bytes.length - 1);
+        frame.write(crc >>> 8);
+        frame.write(crc);
+
+        return frame.toByteArray();
+    }
+
+    // CRC-16/CCITT: polynomial 0x1021, starting at 0xFFFF, no reflection
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            crc &= 0xFFFF;
+        }
+        return crc;
+    }
+
+    // Writes a non-negative value seven bits at a time, low bits first. The high bit of each byte is set if more
+    // bytes follow.
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+}
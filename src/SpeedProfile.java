@@ -0,0 +1,133 @@
+/**
+ * Author: Albert Li
+ * Start Date: 10/18/26
+ *
+ * Description: Speeds and time limits the plotter moves with. Every move between two path points is timed on its
+ * own: pen-up travel and pen-down drawing each have a speed, each servo has a top speed, and a move too short for the
+ * servos to respond to is stretched to the minimum time. The Arduino works out how fast to run each servo from the
+ * distance and the time of a move, so stretching a move slows it down instead of making it longer.
+ *
+ * Changelog:
+ *
+ *      v1.0.0 - 10/18/26
+ *          - Times each move from the pen speeds, the servos' top speeds and the minimum time
+ *          - Added fromArray() so a cached path is timed with the profile it was made with
+ */
+
+public class SpeedProfile {
+
+    //******************************//
+    //***** INSTANCE VARIABLES *****//
+    //******************************//
+
+    private double penUpSpeed; // inches/second
+    private double penDownSpeed; // inches/second
+    private double xMaxSpeed; // inches/second - top speed of xServo, must match X_MAX_SPEED in JavaCommunicator.ino
+    private double yMaxSpeed; // inches/second - top speed of yServo, must match Y_MAX_SPEED in JavaCommunicator.ino
+    private int minTime; // ms - the servos don't respond to shorter moves
+    private int penLoweringTime; // ms - a move in place only lowers the pen
+
+    //************************//
+    //***** CONSTRUCTORS *****//
+    //************************//
+
+    // The speeds the plotter has always used: everything at the servos' top speed
+    public SpeedProfile() {
+        this(2.5, 2.5, 2.5, 2.5, 55, 50);
+    }
+
+    public SpeedProfile(double penUpSpeed, double penDownSpeed, double xMaxSpeed, double yMaxSpeed, int minTime,
+                        int penLoweringTime) {
+        this.penUpSpeed = penUpSpeed;
+        this.penDownSpeed = penDownSpeed;
+        this.xMaxSpeed = xMaxSpeed;
+        this.yMaxSpeed = yMaxSpeed;
+        this.minTime = minTime;
+        this.penLoweringTime = penLoweringTime;
+    }
+
+    //***************************//
+    //***** GETTERS/SETTERS *****//
+    //***************************//
+
+    public double getPenUpSpeed() {
+        return penUpSpeed;
+    }
+
+    public double getPenDownSpeed() {
+        return penDownSpeed;
+    }
+
+    public double getxMaxSpeed() {
+        return xMaxSpeed;
+    }
+
+    public double getyMaxSpeed() {
+        return yMaxSpeed;
+    }
+
+    public int getMinTime() {
+        return minTime;
+    }
+
+    public int getPenLoweringTime() {
+        return penLoweringTime;
+    }
+
+    //*******************//
+    //***** METHODS *****//
+    //*******************//
+
+    // Time in ms for the move from (fromX, fromY) to (toX, toY), ipr inches per Pixel. The move goes at its pen
+    // speed along the longer axis unless a servo can't keep up, and never takes less than minTime. Rounds up, so
+    // no servo is ever asked for more than its top speed.
+    public int moveTime(double ipr, int fromX, int fromY, int toX, int toY, boolean penDown) {
+        int axd = Math.abs(toX - fromX);
+        int ayd = Math.abs(toY - fromY);
+
+        if (axd == 0 && ayd == 0) {
+            return penLoweringTime;
+        }
+
+        double speed = penDown ? penDownSpeed : penUpSpeed;
+        double seconds = ipr * Math.max(Math.max(axd, ayd) / speed, Math.max(axd / xMaxSpeed, ayd / yMaxSpeed));
+
+        return Math.max(minTime, (int) Math.ceil(1000 * seconds));
+    }
+
+    // Fastest the move from (fromX, fromY) to (toX, toY) can go along its length, in inches/second, under the same
+    // limits as moveTime(). A move in place has no speed.
+    public double topSpeed(double ipr, int fromX, int fromY, int toX, int toY, boolean penDown) {
+        int axd = Math.abs(toX - fromX);
+        int ayd = Math.abs(toY - fromY);
+
+        if (axd == 0 && ayd == 0) {
+            return 0;
+        }
+
+        double length = Math.hypot(axd, ayd);
+        double speed = (penDown ? penDownSpeed : penUpSpeed) * length / Math.max(axd, ayd);
+
+        if (axd > 0) {
+            speed = Math.min(speed, xMaxSpeed * length / axd);
+        }
+        if (ayd > 0) {
+            speed = Math.min(speed, yMaxSpeed * length / ayd);
+        }
+
+        // Short moves are slowed down to take minTime
+        return Math.min(speed, 1000 * ipr * length / minTime);
+    }
+
+    // The settings as numbers, for telling apart paths timed with different ones and for saving them with a path
+    public double[] toArray() {
+        return new double[]{penUpSpeed, penDownSpeed, xMaxSpeed, yMaxSpeed, minTime, penLoweringTime};
+    }
+
+    // The profile toArray() was made from
+    public static SpeedProfile fromArray(double[] settings) {
+        return new SpeedProfile(settings[0], settings[1], settings[2], settings[3], (int) settings[4],
+                (int) settings[5]);
+    }
+
+}
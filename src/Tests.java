@@ -33,10 +33,11 @@ public class Tests {
 
     // Method used to print a path in a readable format
     public static void printPath(Path path) {
-        for (int i = 0; i < path.length(); i++) {
-            System.out.print("(" + path.getPath().get(i).getKey().getX() + ", "
-                    + path.getPath().get(i).getKey().getY() + ")"
-                    + " | pen down: " + path.getPath().get(i).getValue());
+        Path.Cursor point = path.cursor();
+        while (point.next()) {
+            System.out.print("(" + point.getX() + ", "
+                    + point.getY() + ")"
+                    + " | pen down: " + point.isPenDown());
             System.out.println();
         }
     }
@@ -137,8 +138,8 @@ public class Tests {
             System.out.println("[BELOW: TEST 2. ISLAND FILTRATION TEST.]");
             System.out.println();
 
-            System.out.println("Total Pixels In Picture: " + p.getPicture().length * p.getPicture()[0].length);
-            System.out.println("Total Pixels Selected: " + p.getAllPixels().size());
+            System.out.println("Total Pixels In Picture: " + p.getBottomBound() * p.getRightBound());
+            System.out.println("Total Pixels Selected: " + p.getPixelCount());
             System.out.println("Pixel Threshold (Island Size Ceiling) [" +
                     p.getPixelThresholdPercent() + "%]: " + p.getPixelThreshold());
             System.out.println("Total Islands: " + (p.getRegions().size() + p.getNotConsidered().size()));
@@ -210,14 +211,14 @@ public class Tests {
             System.out.println("[BELOW: TEST 6. TESTING PIXEL MATCH FUNCTION.]");
             System.out.println();
             System.out.println("Testing same point object - ");
-            System.out.println("(" + path.getMatchingPoint(pix1).getKey().getX() + ", "
-                    + path.getMatchingPoint(pix1).getKey().getY() + ")"
-                    + " | pen down: " + path.getMatchingPoint(pix1).getValue());
+            System.out.println("(" + path.getX(path.getMatchingPoint(pix1)) + ", "
+                    + path.getY(path.getMatchingPoint(pix1)) + ")"
+                    + " | pen down: " + path.isPenDown(path.getMatchingPoint(pix1)));
             System.out.println();
             System.out.println("Testing different point object with same coordinates - ");
-            System.out.println("(" + path.getMatchingPoint(pix7).getKey().getX() + ", "
-                    + path.getMatchingPoint(pix7).getKey().getY() + ")"
-                    + " | pen down: " + path.getMatchingPoint(pix7).getValue());
+            System.out.println("(" + path.getX(path.getMatchingPoint(pix7)) + ", "
+                    + path.getY(path.getMatchingPoint(pix7)) + ")"
+                    + " | pen down: " + path.isPenDown(path.getMatchingPoint(pix7)));
             System.out.println();
 
         } catch (Exception e) {